@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * GVoD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.swim;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import se.kth.swim.msg.net.PiggybackBudget;
+
+/**
+ * Members bucketed by infection time, that is by how many times they have
+ * been piggybacked. Each bucket is a FIFO list linked through the members
+ * themselves, so selecting the k least infected members and moving them to
+ * the next bucket costs O(k) and does not allocate.
+ */
+public class DisseminationQueue {
+	private Member[] heads;
+	private Member[] tails;
+	private final List<Member> selected;
+
+	public DisseminationQueue() {
+		this.heads = new Member[8];
+		this.tails = new Member[8];
+		this.selected = new ArrayList<>();
+	}
+
+	/**
+	 * Appends a member to the bucket of its current infection time.
+	 */
+	public void add(Member member) {
+		int bucket = member.getInfectionTime();
+		ensureBucket(bucket);
+		member.prevInBucket = tails[bucket];
+		member.nextInBucket = null;
+		if (tails[bucket] == null) {
+			heads[bucket] = member;
+		} else {
+			tails[bucket].nextInBucket = member;
+		}
+		tails[bucket] = member;
+	}
+
+	public void remove(Member member) {
+		int bucket = member.getInfectionTime();
+		if (member.prevInBucket == null) {
+			heads[bucket] = member.nextInBucket;
+		} else {
+			member.prevInBucket.nextInBucket = member.nextInBucket;
+		}
+		if (member.nextInBucket == null) {
+			tails[bucket] = member.prevInBucket;
+		} else {
+			member.nextInBucket.prevInBucket = member.prevInBucket;
+		}
+		member.prevInBucket = null;
+		member.nextInBucket = null;
+	}
+
+	public void incInfectionTime(Member member) {
+		remove(member);
+		member.incInfectionTime();
+		add(member);
+	}
+
+	public void resetInfectionTime(Member member) {
+		remove(member);
+		member.resetInfectionTime();
+		add(member);
+	}
+
+	/**
+	 * Selects the least infected members, increments their infection time
+	 * and returns them.
+	 * 
+	 * @param size
+	 *            Maximum number of members to select.
+	 * @param maxInfection
+	 *            Members infected more than this are not selected anymore.
+	 * @param budget
+	 *            Bytes available for the selected peers, members that do
+	 *            not fit are skipped. Null for no byte limit.
+	 * @return The peers of the selected members.
+	 */
+	public List<Peer> poll(int size, int maxInfection, PiggybackBudget budget) {
+		selected.clear();
+		// Bounds the scan for smaller members once the budget is tight
+		int skipped = 0;
+		int last = Math.min(maxInfection, heads.length - 1);
+		scan: for (int bucket = 0; bucket <= last && selected.size() < size; bucket++) {
+			for (Member member = heads[bucket]; member != null
+					&& selected.size() < size; member = member.nextInBucket) {
+				if (budget == null || budget.tryAdd(member.getPeer())) {
+					selected.add(member);
+				} else if (++skipped >= size || budget.isFull()) {
+					break scan;
+				}
+			}
+		}
+
+		// Moved only after the selection, otherwise they would be selected
+		// again from the next bucket
+		List<Peer> ret = new ArrayList<>(selected.size());
+		for (Member member : selected) {
+			incInfectionTime(member);
+			ret.add(member.getPeer());
+		}
+		selected.clear();
+
+		return ret;
+	}
+
+	private void ensureBucket(int bucket) {
+		if (bucket >= heads.length) {
+			int length = Math.max(bucket + 1, heads.length * 2);
+			heads = Arrays.copyOf(heads, length);
+			tails = Arrays.copyOf(tails, length);
+		}
+	}
+}
@@ -70,12 +70,14 @@ public class HostComp extends ComponentDefinition {
         connect(croupier.getNegative(Timer.class), timer);
         connect(croupier.getNegative(Network.class), network, new OverlayFilter(overlayId));
         
-        nat = create(NatTraversalComp.class, new NatTraversalComp.NatTraversalInit(selfAddress, init.seed));
+        // Batches are cut at the same datagram size as the SWIM messages
+        NatTraversalConfig natConfig = init.natConfig.withDatagramBytes(init.swimConfig.datagramBytes);
+        nat = create(NatTraversalComp.class, new NatTraversalComp.NatTraversalInit(selfAddress, init.seed, natConfig));
         connect(nat.getNegative(Network.class), network);
         connect(nat.getNegative(CroupierPort.class), croupier.getPositive(CroupierPort.class));
         connect(nat.getNegative(Timer.class), timer);
         
-        swim = create(SwimComp.class, new SwimComp.SwimInit(selfAddress, init.bootstrapNodes, init.aggregatorAddress, init.seed, infectionTime, piggybackSize));
+        swim = create(SwimComp.class, new SwimComp.SwimInit(selfAddress, init.bootstrapNodes, init.aggregatorAddress, init.seed, init.swimConfig));
         connect(swim.getNegative(Timer.class), timer);
         connect(swim.getNegative(Network.class), nat.getPositive(Network.class));
         connect(swim.getNegative(NatPort.class), nat.getPositive(NatPort.class));
@@ -105,24 +107,29 @@ public class HostComp extends ComponentDefinition {
         public final NatedAddress aggregatorAddress;
         public final long seed;
         public final CroupierConfig croupierConfig;
-        private final Integer infectionTime, piggybackSize;
+        public final SwimConfig swimConfig;
+        public final NatTraversalConfig natConfig;
 
         public HostInit(NatedAddress selfAddress, Set<NatedAddress> bootstrapNodes, NatedAddress aggregatorAddress, long seed, CroupierConfig croupierConfig, Integer infectionTime, Integer piggybackSize) {
+            this(selfAddress, bootstrapNodes, aggregatorAddress, seed, croupierConfig, new SwimConfig(infectionTime, piggybackSize), new NatTraversalConfig());
+        }
+
+        public HostInit(NatedAddress selfAddress, Set<NatedAddress> bootstrapNodes, NatedAddress aggregatorAddress, long seed, CroupierConfig croupierConfig, SwimConfig swimConfig, NatTraversalConfig natConfig) {
             this.selfAddress = selfAddress;
             this.bootstrapNodes = bootstrapNodes;
             this.aggregatorAddress = aggregatorAddress;
             this.seed = seed;
             this.croupierConfig = croupierConfig;
-            this.infectionTime = infectionTime;
-            this.piggybackSize = piggybackSize;
+            this.swimConfig = swimConfig;
+            this.natConfig = natConfig;
         }
         
         public Integer getInfectionTime() {
-        	return infectionTime;
+        	return swimConfig.infectionTime;
         }
         
         public Integer getPiggybackSize() {
-        	return piggybackSize;
+        	return swimConfig.piggybackSize;
         }
     }
 }
@@ -1,38 +1,24 @@
 package se.kth.swim;
 
 public class Member {
-	private final Peer peer;
+	private Peer peer;
 	private Integer infectionTime;
-	private Integer sequenceNumber;
-	private Integer pingedTimes;
+	// Links of the dissemination queue bucket this member is in
+	Member prevInBucket, nextInBucket;
+	// Position in the table's list of members with the same state
+	int stateIndex;
+	// Position in the probe order, while the member is not dead
+	int probeIndex;
 	
 	public Member(Peer peer) {
 		this.peer = peer;
 		this.infectionTime = 0;
-		this.sequenceNumber = 0;
-		this.pingedTimes = 0;
 	}
 
-	public Integer getPingedTimes() {
-		return pingedTimes;
-	}
-	
-	public void setPingedTimes(Integer pingedTimes) {
-		this.pingedTimes = pingedTimes;
-	}
-	
-	public void incrementPingedTimes() {
-		pingedTimes++;
-	}
-	
 	public Integer getInfectionTime() {
 		return infectionTime;
 	}
 	
-	public Integer getSequenceNumber() {
-		return sequenceNumber;
-	}
-	
   public void resetInfectionTime() {
     infectionTime = 0;
   }
@@ -41,6 +27,14 @@ public class Member {
 		return peer;
 	}
 
+	/**
+	 * Only the {@link MembershipTable} holding this member may swap its peer,
+	 * the node id must stay the same.
+	 */
+	void setPeer(Peer peer) {
+		this.peer = peer;
+	}
+
 	public void incInfectionTime() {
 		infectionTime++;
 	}
@@ -49,13 +43,6 @@ public class Member {
     infectionTime = value;
   }
   
-  public boolean isCausal(Integer receivedSeqNum) {
-    return receivedSeqNum > sequenceNumber;
-  }
-
-  public void setSequenceNumber(Integer sequenceNumber) {
-    this.sequenceNumber = sequenceNumber;
-  }
 	
 	@Override
 	public String toString() {
@@ -71,8 +58,12 @@ public class Member {
 		return false;
 	}
 	
+	/**
+	 * Identity of a member is the node id only, so that it stays stable while
+	 * the member sits in the orderings of a {@link MembershipTable}.
+	 */
 	@Override
 	public int hashCode() {
-		return this.getPeer().hashCode() + infectionTime;
+		return this.getPeer().hashCode();
 	}
 }
\ No newline at end of file
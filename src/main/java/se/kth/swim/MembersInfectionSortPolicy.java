@@ -6,9 +6,17 @@ public class MembersInfectionSortPolicy implements Comparator<Member>{
 
 	public MembersInfectionSortPolicy() {}
 
+	/**
+	 * Less infected first. Ties are broken by node id so that the policy is
+	 * consistent with {@link Member#equals(Object)} and can back a sorted set.
+	 */
 	@Override
 	public int compare(Member o1, Member o2) {
-		return o1.getInfectionTime() < o2.getInfectionTime() ? -1 :
-			o1.getInfectionTime() == o2.getInfectionTime() ? 0 : 1;
+		int ret = Integer.compare(o1.getInfectionTime(), o2.getInfectionTime());
+		if (ret != 0) {
+			return ret;
+		}
+		return Integer.compare(o1.getPeer().getNode().getId(), o2.getPeer()
+				.getNode().getId());
 	}
 }
\ No newline at end of file
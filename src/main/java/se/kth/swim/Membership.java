@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * GVoD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.swim;
+
+import java.util.List;
+import java.util.Random;
+
+import se.kth.swim.msg.net.PiggybackBudget;
+
+/**
+ * Local membership list of a SWIM node, indexed by node id.
+ * 
+ * The view keeps its own copy of every peer it is given, so the information
+ * it holds only changes through these methods. Implementations keep the
+ * members bucketed by infection time, in randomized round-robin probe order
+ * and grouped by state, so that no operation has to scan the whole view.
+ * 
+ * @see MembershipTable
+ * @see PrimitiveMembershipTable
+ */
+public interface Membership {
+
+	public boolean contains(int id);
+
+	/**
+	 * @return The peer of the node or null if it is not in the view. The
+	 *         returned peer must not be modified.
+	 */
+	public Peer getPeer(int id);
+
+	/**
+	 * @return The state of the node or null if it is not in the view.
+	 */
+	public NodeState getState(int id);
+
+	/**
+	 * @return The incarnation of the node, 0 if it is not in the view.
+	 */
+	public int getIncarnation(int id);
+
+	/**
+	 * Adds a copy of the peer to the view, replacing what we knew about the
+	 * same node. The infection time is reset so that the change gets spread.
+	 */
+	public void put(Peer peer);
+
+	/**
+	 * Changes the state of a node of the view. Absent nodes are ignored.
+	 */
+	public void setState(int id, NodeState state);
+
+	/**
+	 * Resets the infection time of a node of the view so that it gets spread
+	 * again. Absent nodes are ignored.
+	 */
+	public void resetInfectionTime(int id);
+
+	/**
+	 * @return The next peer to ping in randomized round-robin order, or null
+	 *         if there is no peer that can be pinged. Self and dead members
+	 *         are never returned.
+	 */
+	public Peer nextProbeTarget();
+
+	/**
+	 * Selects the least infected members to piggyback and increments their
+	 * infection time.
+	 * 
+	 * @param size
+	 *            Maximum number of peers to return.
+	 * @param maxInfection
+	 *            Members infected more than this are not spread anymore.
+	 * @param budget
+	 *            Bytes available for the piggyback, members that do not fit
+	 *            are skipped. Null for no byte limit.
+	 * @return The peers to piggyback.
+	 */
+	public List<Peer> disseminate(int size, int maxInfection,
+			PiggybackBudget budget);
+
+	/**
+	 * Samples distinct alive members other than self, uniformly at random.
+	 * 
+	 * @param size
+	 *            Number of members to sample, fewer are returned if there are
+	 *            not enough alive members.
+	 * @param rand
+	 *            Source of randomness.
+	 * @param ret
+	 *            List the peers of the sampled members are added to.
+	 */
+	public void sampleAlive(int size, Random rand, List<Peer> ret);
+
+	/**
+	 * @return The number of members in the given state.
+	 */
+	public int count(NodeState state);
+
+	public int size();
+}
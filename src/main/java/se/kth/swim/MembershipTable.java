@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * GVoD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.swim;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import se.kth.swim.msg.net.PiggybackBudget;
+
+/**
+ * Object layout of the {@link Membership} view: one {@link Member} holding a
+ * {@link Peer} per node, in a hash map keyed by node id.
+ * 
+ * Besides the id index the table maintains the members bucketed by
+ * infection time in a {@link DisseminationQueue}, in the probe order of a
+ * {@link ProbeScheduler} and grouped by state in arrays, so that the
+ * protocol handlers never have to scan the whole view.
+ */
+public class MembershipTable implements Membership {
+	private final Integer selfId;
+	private final Map<Integer, Member> members;
+	private final DisseminationQueue byInfection;
+	private final ProbeScheduler probes;
+	private final Map<NodeState, List<Member>> byState;
+
+	/**
+	 * @param selfId
+	 *            Id of the local node, it is never selected as ping target.
+	 * @param rand
+	 *            Source of randomness for the probe order.
+	 */
+	public MembershipTable(Integer selfId, Random rand) {
+		this.selfId = selfId;
+		this.members = new HashMap<>();
+		this.byInfection = new DisseminationQueue();
+		this.probes = new ProbeScheduler(rand);
+		this.byState = new EnumMap<>(NodeState.class);
+		for (NodeState state : NodeState.values()) {
+			byState.put(state, new ArrayList<>());
+		}
+	}
+
+	@Override
+	public boolean contains(int id) {
+		return members.containsKey(id);
+	}
+
+	@Override
+	public Peer getPeer(int id) {
+		Member member = members.get(id);
+		return member == null ? null : member.getPeer();
+	}
+
+	@Override
+	public NodeState getState(int id) {
+		Member member = members.get(id);
+		return member == null ? null : member.getPeer().getState();
+	}
+
+	@Override
+	public int getIncarnation(int id) {
+		Member member = members.get(id);
+		return member == null ? 0 : member.getPeer().getIncarnation();
+	}
+
+	@Override
+	public int size() {
+		return members.size();
+	}
+
+	@Override
+	public void put(Peer peer) {
+		Peer copy = new Peer(peer.getNode(), peer.getState(),
+				peer.getIncarnation());
+		Member member = members.get(peer.getNode().getId());
+
+		if (member == null) {
+			member = new Member(copy);
+			members.put(peer.getNode().getId(), member);
+			index(member);
+			// Not in the probe order yet, as if it was dead
+			updateProbes(member, NodeState.DEAD);
+		} else {
+			NodeState before = member.getPeer().getState();
+			unindex(member);
+			member.setPeer(copy);
+			member.resetInfectionTime();
+			index(member);
+			updateProbes(member, before);
+		}
+	}
+
+	@Override
+	public void setState(int id, NodeState state) {
+		Member member = members.get(id);
+		if (member != null) {
+			NodeState before = member.getPeer().getState();
+			removeFromState(member);
+			member.getPeer().setState(state);
+			addToState(member);
+			updateProbes(member, before);
+		}
+	}
+
+	@Override
+	public void resetInfectionTime(int id) {
+		Member member = members.get(id);
+		if (member != null) {
+			byInfection.resetInfectionTime(member);
+		}
+	}
+
+	@Override
+	public Peer nextProbeTarget() {
+		Member member = probes.next();
+		return member == null ? null : member.getPeer();
+	}
+
+	@Override
+	public List<Peer> disseminate(int size, int maxInfection,
+			PiggybackBudget budget) {
+		return byInfection.poll(size, maxInfection, budget);
+	}
+
+	/**
+	 * Partial Fisher-Yates shuffle of the alive members. Costs O(size) and
+	 * allocates nothing beyond what the caller's list needs.
+	 */
+	@Override
+	public void sampleAlive(int size, Random rand, List<Peer> ret) {
+		List<Member> alive = byState.get(NodeState.ALIVE);
+		int n = alive.size();
+
+		// Move self out of the sampled range
+		Member self = members.get(selfId);
+		if (self != null && self.getPeer().getState().equals(NodeState.ALIVE)) {
+			swap(alive, self.stateIndex, n - 1);
+			n--;
+		}
+
+		for (int i = 0; i < Math.min(size, n); i++) {
+			swap(alive, i, i + rand.nextInt(n - i));
+			ret.add(alive.get(i).getPeer());
+		}
+	}
+
+	@Override
+	public int count(NodeState state) {
+		return byState.get(state).size();
+	}
+
+	private void index(Member member) {
+		byInfection.add(member);
+		addToState(member);
+	}
+
+	private void unindex(Member member) {
+		byInfection.remove(member);
+		removeFromState(member);
+	}
+
+	/**
+	 * Dead members leave the probe order and come back to it when they are
+	 * alive again. Self is never probed.
+	 */
+	private void updateProbes(Member member, NodeState before) {
+		if (selfId.equals(member.getPeer().getNode().getId())) {
+			return;
+		}
+		boolean wasDead = before == NodeState.DEAD;
+		boolean dead = member.getPeer().getState() == NodeState.DEAD;
+		if (dead && !wasDead) {
+			probes.remove(member);
+		} else if (wasDead && !dead) {
+			probes.add(member);
+		}
+	}
+
+	private void addToState(Member member) {
+		List<Member> group = byState.get(member.getPeer().getState());
+		member.stateIndex = group.size();
+		group.add(member);
+	}
+
+	/**
+	 * Swap-remove, the order within a state group does not matter.
+	 */
+	private void removeFromState(Member member) {
+		List<Member> group = byState.get(member.getPeer().getState());
+		swap(group, member.stateIndex, group.size() - 1);
+		group.remove(group.size() - 1);
+	}
+
+	private static void swap(List<Member> group, int i, int j) {
+		Member tmp = group.get(i);
+		group.set(i, group.get(j));
+		group.set(j, tmp);
+		group.get(i).stateIndex = i;
+		group.get(j).stateIndex = j;
+	}
+
+	@Override
+	public String toString() {
+		return members.values().toString();
+	}
+}
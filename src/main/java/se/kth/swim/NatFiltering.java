@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * GVoD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.swim;
+
+/**
+ * Inbound filtering of a NAT, as in RFC 4787. The simulator delivers every
+ * message, so the {@link NatTraversalComp} of a NAT node applies its own
+ * filtering to what it receives.
+ */
+public enum NatFiltering {
+	/**
+	 * Anyone may send to the node once it has a mapping, as if it were open.
+	 */
+	ENDPOINT_INDEPENDENT,
+	/**
+	 * Only nodes the NAT node sent to recently get through, everything else
+	 * has to come through its parents.
+	 */
+	ADDRESS_DEPENDENT
+}
@@ -18,10 +18,17 @@
  */
 package se.kth.swim;
 
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
@@ -31,14 +38,27 @@ import org.slf4j.LoggerFactory;
 
 import se.kth.swim.croupier.CroupierPort;
 import se.kth.swim.croupier.msg.CroupierSample;
+import se.kth.swim.croupier.msg.CroupierUpdate;
 import se.kth.swim.croupier.util.Container;
+import se.kth.swim.msg.IndirectPing;
+import se.kth.swim.msg.Ping;
+import se.kth.swim.msg.Pong;
 import se.kth.swim.msg.net.NetMsg;
+import se.kth.swim.msg.net.SwimCodec;
 import se.kth.swim.nat.events.NatPort;
 import se.kth.swim.nat.events.NatRequest;
 import se.kth.swim.nat.events.NatResponse;
 import se.kth.swim.nat.events.NatUpdate;
+import se.kth.swim.nat.msg.Batch;
+import se.kth.swim.nat.msg.NetBatch;
+import se.kth.swim.nat.msg.NetHandover;
+import se.kth.swim.nat.msg.NetPayload;
+import se.kth.swim.nat.msg.Payload;
+import se.kth.swim.nat.msg.RelayView;
 import se.kth.swim.nat.msg.NetNatPing;
+import se.kth.swim.nat.msg.NatPong;
 import se.kth.swim.nat.msg.NetNatPong;
+import se.kth.swim.util.RttTable;
 import se.sics.kompics.ComponentDefinition;
 import se.sics.kompics.Handler;
 import se.sics.kompics.Init;
@@ -57,6 +77,7 @@ import se.sics.kompics.timer.Timer;
 import se.sics.p2ptoolbox.util.network.NatType;
 import se.sics.p2ptoolbox.util.network.NatedAddress;
 import se.sics.p2ptoolbox.util.network.impl.BasicAddress;
+import se.sics.p2ptoolbox.util.network.impl.BasicHeader;
 import se.sics.p2ptoolbox.util.network.impl.BasicNatedAddress;
 import se.sics.p2ptoolbox.util.network.impl.RelayHeader;
 import se.sics.p2ptoolbox.util.network.impl.SourceHeader;
@@ -71,6 +92,34 @@ public class NatTraversalComp extends ComponentDefinition {
 			.getLogger(NatTraversalComp.class);
 
 	private static final Integer PARENTS_SIZE = 10;
+	// Heartbeat period, a parent we heard from more recently is not pinged
+	private static final long HB_PERIOD = 1000;
+	// Parent ranking: score = smoothed rtt + LOAD_WEIGHT * relayed children
+	private static final double UNKNOWN_RTT = 1000;
+	private static final double LOAD_WEIGHT = 20;
+	// A child that did not heartbeat for this long is not counted anymore
+	private static final long CHILD_TIMEOUT = 3000;
+	private static final int MAX_PENDING_PROBES = 256;
+	// A relayed ping unanswered for this long moves the destination to its
+	// next parent, same as the SWIM ping timeout
+	private static final long RELAY_TIMEOUT = 1200;
+	private static final int MAX_RELAY_CHOICES = 1024;
+	// Hedged messages remembered to drop their second copy
+	private static final int MAX_HEDGED_SEEN = 256;
+	// Direct routes to NAT nodes: wait this long for the punch answer and
+	// this long after a failure before trying again
+	private static final long PUNCH_TIMEOUT = 1200;
+	private static final long PUNCH_RETRY = 30000;
+	private static final int MAX_DIRECT_ROUTES = 1024;
+	// Emulated NAT mappings last this long after our last message through
+	// them, the minimum UDP mapping lifetime of RFC 4787
+	private static final long MAPPING_TIMEOUT = 120000;
+	private static final int MAX_MAPPINGS = 1024;
+	// Old parents forward for a former child this long after its handover
+	private static final long HANDOVER_WINDOW = 5000;
+	private static final int MAX_HANDOVERS = 256;
+	// Consecutive unanswered heartbeats before a parent is considered dead
+	private static final int MAX_MISSES = 3;
 
 	private Negative<Network> local = provides(Network.class);
 	private Positive<Network> network = requires(Network.class);
@@ -81,14 +130,110 @@ public class NatTraversalComp extends ComponentDefinition {
 	private NatedAddress selfAddress;
 	private final Random rand;
 	private UUID heartBeatTimout;
-	private List<UUID> sentHeartBeats;
-	private List<NatedAddress> sample;
+	// Heartbeat state of every current parent, by id
+	private final Map<Integer, ParentState> parentStates;
+	// Replace only the dead parent instead of the whole set
+	private final boolean singleReplacement;
+	// Parents of the address we last announced, the one peers relay through
+	private Set<NatedAddress> advertisedParents;
+	// Public nodes of the last Croupier sample, shared with Croupier
+	private Set<Container<NatedAddress, Object>> sample;
+	private long sampleVersion;
+	// Relay load advertised by the nodes of the last sample, by id
+	private final Map<Integer, Integer> sampleLoad;
+	// Round trip times from heartbeats and SWIM pings
+	private final RttTable rtts;
+	private final Map<UUID, Long> probesSentAt;
+	// Relay in use for every NAT destination, by id
+	private final Map<Integer, RelayChoice> relays;
+	// Send failure detector messages through two parents
+	private final boolean hedgedRelay;
+	private final Set<Object> hedgedSeen;
+	// Try direct paths to NAT nodes we had contact with
+	private final boolean directUpgrade;
+	private final Map<Integer, DirectRoute> directRoutes;
+	// Filtering of our NAT, and when we last sent to every destination
+	private final NatFiltering natFiltering;
+	private final Map<Integer, Long> mappings;
+	// NAT children we relay for, by id, and when they last heartbeated
+	private final Map<Integer, Long> children;
+	// Former children that moved to other parents, by id
+	private final Map<Integer, MovedChild> handovers;
+	private int advertisedChildren;
+	// Messages waiting for the end of the flush window, by next hop
+	private final long batchWindow;
+	// Relay SWIM messages as encoded payloads
+	private final boolean opaqueRelay;
+	// Maximum encoded size of a batch, 0 for no byte limit
+	private final int datagramBytes;
+	private final Map<NatedAddress, PendingBatch> pending;
+	private UUID flushTimeout;
 
 	public NatTraversalComp(NatTraversalInit init) {
 		this.selfAddress = init.selfAddress;
+		this.batchWindow = init.config.batchWindow;
+		this.opaqueRelay = init.config.opaqueRelay;
+		this.datagramBytes = init.config.datagramBytes;
+		this.pending = new HashMap<>();
+		this.flushTimeout = null;
 		this.heartBeatTimout = null;
-		this.sentHeartBeats = new ArrayList<>();
-		this.sample = new ArrayList<>();
+		this.parentStates = new HashMap<>();
+		this.singleReplacement = init.config.singleParentReplacement;
+		this.advertisedParents = new HashSet<>(init.selfAddress.getParents());
+		resetParentStates();
+		this.sample = Collections.emptySet();
+		this.sampleVersion = -1;
+		this.sampleLoad = new HashMap<>();
+		this.rtts = new RttTable();
+		this.probesSentAt = new LinkedHashMap<UUID, Long>() {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<UUID, Long> eldest) {
+				// Probes that never got an answer
+				return size() > MAX_PENDING_PROBES;
+			}
+		};
+		this.relays = new LinkedHashMap<Integer, RelayChoice>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<Integer, RelayChoice> eldest) {
+				// Least recently used destinations
+				return size() > MAX_RELAY_CHOICES;
+			}
+		};
+		this.hedgedRelay = init.config.hedgedRelay;
+		this.hedgedSeen = Collections.newSetFromMap(
+				new LinkedHashMap<Object, Boolean>() {
+					@Override
+					protected boolean removeEldestEntry(
+							Map.Entry<Object, Boolean> eldest) {
+						return size() > MAX_HEDGED_SEEN;
+					}
+				});
+		this.directUpgrade = init.config.directUpgrade;
+		this.directRoutes = new LinkedHashMap<Integer, DirectRoute>(16, 0.75f,
+				true) {
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<Integer, DirectRoute> eldest) {
+				return size() > MAX_DIRECT_ROUTES;
+			}
+		};
+		this.natFiltering = init.config.natFiltering;
+		this.mappings = new LinkedHashMap<Integer, Long>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Long> eldest) {
+				return size() > MAX_MAPPINGS;
+			}
+		};
+		this.children = new HashMap<>();
+		this.handovers = new LinkedHashMap<Integer, MovedChild>() {
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<Integer, MovedChild> eldest) {
+				return size() > MAX_HANDOVERS;
+			}
+		};
+		this.advertisedChildren = -1;
 
 		log.info("{} {} initiating...", new Object[] { selfAddress.getId(),
 				(selfAddress.isOpen() ? "OPEN" : "NATED") });
@@ -104,10 +249,12 @@ public class NatTraversalComp extends ComponentDefinition {
 
 		subscribe(handleHBTimeout, timer);
 		subscribe(handleParentFailure, timer);
+		subscribe(handleFlushTimeout, timer);
 
 		subscribe(handleIncomingMsg, network);
 		subscribe(handleNatPing, network);
 		subscribe(handleNatPong, network);
+		subscribe(handleHandover, network);
     
     subscribe(handleNatResponse, nat);
 	}
@@ -131,6 +278,11 @@ public class NatTraversalComp extends ComponentDefinition {
 		public void handle(Stop event) {
 			if (heartBeatTimout != null)
 				cancelPeriodicHB(heartBeatTimout);
+			if (flushTimeout != null) {
+				// Messages already handed to us are sent, not lost
+				trigger(new CancelTimeout(flushTimeout), timer);
+				flushPending();
+			}
 			log.info("{} stopping...", new Object[] { selfAddress.getId() });
 		}
 
@@ -140,54 +292,122 @@ public class NatTraversalComp extends ComponentDefinition {
 
 		@Override
 		public void handle(NetMsg<Object> msg) {
-			log.debug("{} received msg:{}", new Object[] { selfAddress.getId(),
-					msg });
-			Header<NatedAddress> header = msg.getHeader();
-			if (header instanceof SourceHeader) {
-				if (!selfAddress.isOpen()) {
-					throw new RuntimeException(
-							"source header msg received on nated node - nat traversal logic error");
-				}
-				SourceHeader<NatedAddress> sourceHeader = (SourceHeader<NatedAddress>) header;
-				if (sourceHeader.getActualDestination().getParents()
-						.contains(selfAddress)) {
-					log.debug("{} relaying message for:{}", new Object[] {
-							selfAddress.getId(), sourceHeader.getSource() });
-					RelayHeader<NatedAddress> relayHeader = sourceHeader
-							.getRelayHeader();
-					trigger(msg.copyMessage(relayHeader), network);
-					return;
-				} else {
-					log.debug(
-							"{} received weird relay message:{} - dropping it",
-							new Object[] { selfAddress.getId(), msg });
-					return;
-				}
-			} else if (header instanceof RelayHeader) {
-				if (selfAddress.isOpen()) {
-					throw new RuntimeException(
-							"relay header msg received on open node - nat traversal logic error");
+			if (filtered(msg.getHeader().getSource())) {
+				return;
+			}
+			// NatPongs are left to their handler, which times the heartbeat
+			if (!selfAddress.isOpen() && !(msg.getContent() instanceof NatPong)) {
+				heardFromParent(msg.getHeader().getSource());
+			}
+			if (msg.getContent() instanceof Batch) {
+				// Unpack and handle every message as if it came on its own
+				Batch batch = (Batch) msg.getContent();
+				log.debug("{} received batch of {} msgs from:{}", new Object[] {
+						selfAddress.getId(), batch.getMessages().size(),
+						msg.getSource() });
+				for (NetMsg<Object> inner : batch.getMessages()) {
+					receive(inner);
 				}
-				RelayHeader<NatedAddress> relayHeader = (RelayHeader<NatedAddress>) header;
-				log.info(
-						"{} delivering relayed message:{} from:{}",
-						new Object[] { selfAddress.getId(), msg,
-								relayHeader.getActualSource() });
-				Header<NatedAddress> originalHeader = relayHeader
-						.getActualHeader();
-				trigger(msg.copyMessage(originalHeader), local);
+				return;
+			}
+			receive(msg);
+		}
+
+	};
+
+	/**
+	 * Relays, unwraps or delivers a message received from the network
+	 */
+	private void receive(NetMsg<Object> msg) {
+		log.debug("{} received msg:{}", new Object[] { selfAddress.getId(),
+				msg });
+		Header<NatedAddress> header = msg.getHeader();
+		if (header instanceof SourceHeader) {
+			if (!selfAddress.isOpen()) {
+				throw new RuntimeException(
+						"source header msg received on nated node - nat traversal logic error");
+			}
+			SourceHeader<NatedAddress> sourceHeader = (SourceHeader<NatedAddress>) header;
+			NatedAddress moved = movedChild(sourceHeader.getActualDestination());
+			if (moved != null) {
+				forwardToNewParent(msg, sourceHeader, moved);
+				return;
+			}
+			if (sourceHeader.getActualDestination().getParents()
+					.contains(selfAddress)) {
+				log.debug("{} relaying message for:{}", new Object[] {
+						selfAddress.getId(), sourceHeader.getSource() });
+				RelayHeader<NatedAddress> relayHeader = sourceHeader
+						.getRelayHeader();
+				// The child skips its heartbeat to us when it receives this
+				children.put(relayHeader.getDestination().getId(),
+						System.currentTimeMillis());
+				advertiseRelayLoad();
+				send(msg.copyMessage(relayHeader),
+						relayHeader.getDestination());
 				return;
 			} else {
 				log.debug(
-						"{} delivering direct message:{} from:{}",
-						new Object[] { selfAddress.getId(), msg,
-								header.getSource() });
-				trigger(msg, local);
+						"{} received weird relay message:{} - dropping it",
+						new Object[] { selfAddress.getId(), msg });
+				return;
+			}
+		} else if (header instanceof RelayHeader) {
+			if (selfAddress.isOpen()) {
+				throw new RuntimeException(
+						"relay header msg received on open node - nat traversal logic error");
+			}
+			RelayHeader<NatedAddress> relayHeader = (RelayHeader<NatedAddress>) header;
+			if (hedgedRelay && isDuplicate(relayHeader.getActualSource(),
+					msg.getContent())) {
+				log.debug("{} dropping second copy of:{}", new Object[] {
+						selfAddress.getId(), msg });
 				return;
 			}
+			log.info(
+					"{} delivering relayed message:{} from:{}",
+					new Object[] { selfAddress.getId(), msg,
+							relayHeader.getActualSource() });
+			Header<NatedAddress> originalHeader = relayHeader
+					.getActualHeader();
+			directContact(originalHeader.getSource());
+			pongReceived(originalHeader.getSource(), msg.getContent());
+			trigger(msg.copyMessage(originalHeader), local);
+			return;
+		} else {
+			log.debug(
+					"{} delivering direct message:{} from:{}",
+					new Object[] { selfAddress.getId(), msg,
+							header.getSource() });
+			pongReceived(header.getSource(), msg.getContent());
+			directContact(header.getSource());
+			trigger(msg, local);
+			return;
 		}
+	}
 
-	};
+	/**
+	 * Rtt, relay and direct route bookkeeping for the pong answering one of
+	 * our pings. A relayed pong is still an encoded payload when opaque
+	 * relaying is on, its UUID is read without decoding it.
+	 */
+	private void pongReceived(NatedAddress from, Object content) {
+		UUID probe;
+		if (content instanceof Pong) {
+			probe = ((Pong) content).getPingTimeoutUUID();
+		} else if (content instanceof Payload
+				&& ((Payload) content).getType() == SwimCodec.PONG) {
+			probe = SwimCodec.probeOf((Payload) content);
+		} else {
+			return;
+		}
+		if (probe == null) {
+			return;
+		}
+		measureRtt(probe, from);
+		relayAnswered(from, probe);
+		directAnswered(from, probe);
+	}
 
 	private Handler<NetMsg<Object>> handleOutgoingMsg = new Handler<NetMsg<Object>>() {
 
@@ -196,45 +416,154 @@ public class NatTraversalComp extends ComponentDefinition {
 			log.trace("{} sending msg:{}", new Object[] { selfAddress.getId(),
 					msg });
 			Header<NatedAddress> header = msg.getHeader();
+			if (msg.getContent() instanceof Ping) {
+				probesSentAt.put(((Ping) msg.getContent()).getPingTimeoutUUID(),
+						System.currentTimeMillis());
+			}
 			if (header.getDestination().isOpen()) {
 				log.info("{} sending direct message:{} to:{}", new Object[] {
 						selfAddress.getId(), msg, header.getDestination() });
-				trigger(msg, network);
+				send(msg, header.getDestination());
 				return;
 			} else {
+				if (directUpgrade && sendDirect(msg)) {
+					return;
+				}
 				if (header.getDestination().getParents().isEmpty()) {
 					throw new RuntimeException("nated node with no parents");
 				}
-				NatedAddress parent = randomNode(header.getDestination()
-						.getParents());
+				NatedAddress parent = relayFor(header.getDestination(),
+						msg.getContent());
 				SourceHeader<NatedAddress> sourceHeader = new SourceHeader(
 						header, parent);
 				log.info("{} sending message:{} to relay:{}", new Object[] {
 						selfAddress.getId(), msg, parent });
-				trigger(msg.copyMessage(sourceHeader), network);
+				NetMsg<Object> relayed = opaqueRelay ? toPayload(msg,
+						sourceHeader) : msg.copyMessage(sourceHeader);
+				send(relayed, parent);
+
+				// A second copy through another parent, the first to arrive
+				// is delivered
+				if (hedgedRelay && isHedged(msg.getContent())) {
+					NatedAddress second = relays.get(
+							header.getDestination().getId()).next();
+					if (!second.equals(parent)) {
+						send(relayed.copyMessage(new SourceHeader(header,
+								second)), second);
+					}
+				}
 				return;
 			}
 		}
 
 	};
 
+	/**
+	 * Encodes the content of a message, so that the relay forwards it
+	 * without decoding it. Messages the codec does not know are relayed as
+	 * they are.
+	 */
+	private NetMsg<Object> toPayload(NetMsg<Object> msg,
+			Header<NatedAddress> header) {
+		try {
+			return (NetMsg) new NetPayload(header, SwimCodec.toPayload(msg));
+		} catch (IllegalArgumentException ex) {
+			return msg.copyMessage(header);
+		}
+	}
+
+	/**
+	 * Sends a message to the next hop, or queues it to be batched with the
+	 * other messages to the same next hop until the flush window ends.
+	 * Messages that would not fit in one datagram together are flushed
+	 * before.
+	 */
+	private void send(NetMsg<Object> msg, NatedAddress nextHop) {
+		opened(nextHop);
+		if (batchWindow <= 0) {
+			trigger(msg, network);
+			return;
+		}
+
+		int size;
+		try {
+			size = SwimCodec.encodedSize(msg);
+		} catch (IllegalArgumentException ex) {
+			// Only SWIM messages are batched
+			trigger(msg, network);
+			return;
+		}
+
+		PendingBatch batch = pending.get(nextHop);
+		if (batch != null && datagramBytes > 0
+				&& batch.bytes + size > datagramBytes) {
+			flush(nextHop, batch);
+			pending.remove(nextHop);
+			batch = null;
+		}
+		if (batch == null) {
+			batch = new PendingBatch(SwimCodec.batchOverhead(selfAddress,
+					nextHop));
+			pending.put(nextHop, batch);
+		}
+		batch.messages.add(msg);
+		batch.bytes += size;
+
+		if (flushTimeout == null) {
+			flushTimeout = scheduleFlush();
+		}
+	}
+
+	private void flush(NatedAddress nextHop, PendingBatch batch) {
+		if (batch.messages.size() == 1) {
+			trigger(batch.messages.get(0), network);
+		} else {
+			log.debug("{} sending batch of {} msgs to:{}", new Object[] {
+					selfAddress.getId(), batch.messages.size(), nextHop });
+			trigger(new NetBatch(selfAddress, nextHop, batch.messages), network);
+		}
+	}
+
+	/**
+	 * Handle the end of the flush window, send everything queued
+	 */
+	private final Handler<FlushTimeout> handleFlushTimeout = new Handler<FlushTimeout>() {
+		@Override
+		public void handle(FlushTimeout event) {
+			flushPending();
+		}
+	};
+
+	private void flushPending() {
+		flushTimeout = null;
+		pending.forEach((nextHop, batch) -> flush(nextHop, batch));
+		pending.clear();
+	}
+
 	/**
 	 * Handle timeout for periodic heartbeats
 	 */
 	private final Handler<HeartBeatTimeout> handleHBTimeout = new Handler<HeartBeatTimeout>() {
 		@Override
 		public void handle(HeartBeatTimeout event) {
-			// Send PING to all parents
-			Set<NatedAddress> parents = selfAddress.getParents();
-			parents.forEach(x -> {
+			// Send PING to every idle parent that has no heartbeat in flight.
+			// Only traffic other than our own heartbeats makes a parent busy,
+			// otherwise idle parents would be pinged every other period
+			long now = System.currentTimeMillis();
+			for (ParentState state : parentStates.values()) {
+				if (state.pending != null || now - state.lastHeard < HB_PERIOD) {
+					continue;
+				}
 				// Schedule failure timeout and trigger NATPing
-				UUID hbTimeout = scheduleParentFailureTimeout(x);
-				sentHeartBeats.add(hbTimeout);
+				state.pending = scheduleParentFailureTimeout(state.parent);
+				state.lastSent = now;
 				log.debug(
 						"Node {} sending NatPing and setting timeout for node {}",
-						new Object[] { selfAddress.getId(), x.getId() });
-				trigger(new NetNatPing(selfAddress, x, hbTimeout), network);
-			});
+						new Object[] { selfAddress.getId(), state.parent.getId() });
+				opened(state.parent);
+				trigger(new NetNatPing(selfAddress, state.parent, state.pending),
+						network);
+			}
 		}
 	};
 
@@ -244,12 +573,43 @@ public class NatTraversalComp extends ComponentDefinition {
 	private final Handler<NetNatPing> handleNatPing = new Handler<NetNatPing>() {
 		@Override
 		public void handle(NetNatPing event) {
+			if (filtered(event.getSource())) {
+				return;
+			}
 			log.debug("Node {} received NatPing from node {}, responding...",
 					new Object[] { selfAddress.getId(),
 							event.getSource().getId() });
 			// Respond to ping
+			opened(event.getSource());
 			trigger(new NetNatPong(selfAddress, event.getSource(), event
 					.getContent().getHBTimeoutId()), network);
+
+			// The sender uses us as parent, unless it is punching a direct
+			// route to this NAT node
+			if (selfAddress.isOpen()) {
+				handovers.remove(event.getSource().getId());
+				children.put(event.getSource().getId(),
+						System.currentTimeMillis());
+				advertiseRelayLoad();
+			}
+		}
+	};
+
+	/**
+	 * A former child moved to other parents
+	 */
+	private final Handler<NetHandover> handleHandover = new Handler<NetHandover>() {
+		@Override
+		public void handle(NetHandover event) {
+			NatedAddress newAddress = event.getContent().getNewAddress();
+			log.debug("Node {}, child {} moved to parents {}", new Object[] {
+					selfAddress.getId(), newAddress.getId(),
+					newAddress.getParents() });
+			handovers.put(newAddress.getId(), new MovedChild(newAddress,
+					System.currentTimeMillis() + HANDOVER_WINDOW));
+			if (children.remove(newAddress.getId()) != null) {
+				advertiseRelayLoad();
+			}
 		}
 	};
 
@@ -259,16 +619,30 @@ public class NatTraversalComp extends ComponentDefinition {
 	private final Handler<NetNatPong> handleNatPong = new Handler<NetNatPong>() {
 		@Override
 		public void handle(NetNatPong event) {
+			if (filtered(event.getSource())) {
+				return;
+			}
 			log.debug(
 					"Node {} received NatPong from node {}, canceling timeout!",
 					new Object[] { selfAddress.getId(),
 							event.getSource().getId() });
-			// Cancel timeout set for that node
-			// Remove it from the list of sent heartbeats
+			ParentState state = parentStates.get(event.getSource().getId());
+			if (state == null) {
+				punchAnswered(event.getSource(), event.getContent()
+						.getHBTimeoutId());
+				return;
+			}
+
+			// Even a late pong shows the parent is alive
+			long now = System.currentTimeMillis();
+			state.misses = 0;
+
+			// Cancel timeout set for the heartbeat in flight
 			UUID receivedHeartBeat = event.getContent().getHBTimeoutId();
-			if (sentHeartBeats.contains(receivedHeartBeat)) {
+			if (receivedHeartBeat.equals(state.pending)) {
 				cancelParentFailureTimeout(receivedHeartBeat);
-				sentHeartBeats.remove(receivedHeartBeat);
+				state.pending = null;
+				rtts.sample(state.parent.getId(), now - state.lastSent);
 			}
 		}
 	};
@@ -279,23 +653,41 @@ public class NatTraversalComp extends ComponentDefinition {
 	private final Handler<ParentFailureTimeout> handleParentFailure = new Handler<ParentFailureTimeout>() {
 		@Override
 		public void handle(ParentFailureTimeout event) {
+			ParentState state = parentStates.get(event.getPeer().getId());
+			if (state == null || !event.getTimeoutId().equals(state.pending)) {
+				// Parent already replaced
+				return;
+			}
+			state.pending = null;
+			state.misses++;
+			if (state.misses < MAX_MISSES) {
+				log.debug("Node {}, parent {} missed {} heartbeats", new Object[] {
+						selfAddress.getId(), event.getPeer().getId(), state.misses });
+				return;
+			}
+
 			log.debug(
 					"Node {}, parent {} is DEAD!",
 					new Object[] { selfAddress.getId(), event.getPeer().getId() });
+			if (singleReplacement) {
+				replaceParent(event.getPeer());
+				return;
+			}
 			if (sample.size() > 1) {
-			// Only one failure is enough to choose a new set of parents. Cancel
-			// remaining.
-			sentHeartBeats.remove(event.getTimeoutId());
-			List<UUID> tmpUUIDList = new ArrayList<UUID>(sentHeartBeats);
-			tmpUUIDList.forEach(x -> { cancelParentFailureTimeout(x);
-				sentHeartBeats.remove(x);
-				});
-
-			tmpUUIDList.clear();
+			// One dead parent is enough to choose a new set of parents. Cancel
+			// the heartbeats in flight.
+			for (ParentState other : parentStates.values()) {
+				if (other.pending != null) {
+					cancelParentFailureTimeout(other.pending);
+					other.pending = null;
+				}
+			}
+			// No more heartbeats to it while we wait for the new parents
+			parentStates.remove(event.getPeer().getId());
 			
-			// Set new parents
-			List<NatedAddress> newParents = new ArrayList<>(
-					sample.subList(0, Math.min(sample.size(), PARENTS_SIZE + 1)));
+			// Ask for all the candidates, best first, the first alive ones
+			// become our parents
+			List<NatedAddress> newParents = rankParents(event.getPeer());
 			
       trigger(new NatRequest(newParents), nat);
 			} else {
@@ -311,9 +703,57 @@ public class NatTraversalComp extends ComponentDefinition {
       
       /*event.getParents()
         .forEach(x -> selfAddress.getParents().add(x));*/
+    	List<NatedAddress> alive = event.getParents();
+    	Set<NatedAddress> oldParents = selfAddress.getParents();
+    	Set<NatedAddress> parents;
+    	boolean announce = true;
+    	if (singleReplacement) {
+    		// Keep the parents that still answer and fill up with the best
+    		// alive candidates. Failed parents nobody can replace stay until
+    		// a later attempt finds a standby
+    		parents = new HashSet<>();
+    		for (ParentState state : parentStates.values()) {
+    			if (state.misses < MAX_MISSES) {
+    				parents.add(state.parent);
+    			}
+    		}
+    		for (NatedAddress candidate : alive) {
+    			if (parents.size() >= PARENTS_SIZE) {
+    				break;
+    			}
+    			parents.add(candidate);
+    		}
+    		for (ParentState state : parentStates.values()) {
+    			if (parents.size() >= oldParents.size()) {
+    				break;
+    			}
+    			parents.add(state.parent);
+    		}
+    	} else {
+    		parents = new HashSet<NatedAddress>(alive.subList(0,
+    				Math.min(alive.size(), PARENTS_SIZE)));
+    	}
+    	if (parents.isEmpty()) {
+    		log.debug("Node {} has no alive parent candidate, keeping its parents and will try later...",
+    				selfAddress.getId());
+    		parents = oldParents;
+    	}
+    	if (parents.equals(oldParents)) {
+    		// Nothing replaced, heartbeats go on to the parents we had
+    		resetParentStates();
+    		return;
+    	}
+    	if (singleReplacement) {
+    		// Parents that only we know about are replaced silently, peers
+    		// must learn about a dropped parent they still relay through
+    		announce = dropsAdvertised(advertisedParents, parents);
+    	}
+    	if (announce) {
+    		advertisedParents = new HashSet<>(parents);
+    	}
     	selfAddress = new BasicNatedAddress(new BasicAddress(
     			selfAddress.getIp(), 12345, selfAddress.getId()),
-    			NatType.NAT, new HashSet<NatedAddress>(event.getParents()));
+    			NatType.NAT, parents);
             
       StringBuilder sb = new StringBuilder();
       sb.append("{"); 
@@ -321,8 +761,16 @@ public class NatTraversalComp extends ComponentDefinition {
       sb.append("}");
       
       log.debug("Node {} new parents are: {}", selfAddress.getId(), selfAddress.getParents());
+      resetParentStates();
       
-      trigger(new NatUpdate(selfAddress), nat);
+      // The parents we dropped forward what others still send them for us
+      // until our new address spreads
+      for (NatedAddress old : oldParents) {
+    	  if (!parents.contains(old)) {
+    		  trigger(new NetHandover(selfAddress, old, selfAddress), network);
+    	  }
+      }
+      trigger(new NatUpdate(selfAddress, announce), nat);
     }
   };
   
@@ -333,39 +781,384 @@ public class NatTraversalComp extends ComponentDefinition {
 					event.publicSample);
 			// use this to change parent in case it died
 			log.debug("Node {} RECEIVED CROUPIER SAMPLE!!!", selfAddress.getId());
-			sample.clear();
+			if (event.publicVersion >= 0 && event.publicVersion == sampleVersion) {
+				// Same nodes as the last one
+				return;
+			}
+			sample = event.publicSample;
+			sampleVersion = event.publicVersion;
+			sampleLoad.clear();
 
-			Iterator<Container<NatedAddress, Object>> iter = event.publicSample
-					.iterator();
+			Iterator<Container<NatedAddress, Object>> iter = sample.iterator();
 			while (iter.hasNext()) {
-				sample.add(iter.next().getSource());
+				Container<NatedAddress, Object> container = iter.next();
+				if (container.getContent() instanceof RelayView) {
+					sampleLoad.put(container.getSource().getId(),
+							((RelayView) container.getContent()).getChildren());
+				}
 			}
 		}
 	};
 
-	private NatedAddress randomNode(Set<NatedAddress> nodes) {
-		int index = rand.nextInt(nodes.size());
-		Iterator<NatedAddress> it = nodes.iterator();
-		while (index > 0) {
-			it.next();
-			index--;
+	/**
+	 * Any message from a parent proves it is alive, the same as a NatPong
+	 * would. The heartbeat in flight is not needed anymore
+	 */
+	private void heardFromParent(NatedAddress from) {
+		ParentState state = parentStates.get(from.getId());
+		if (state == null) {
+			return;
+		}
+		state.lastHeard = System.currentTimeMillis();
+		state.misses = 0;
+		if (state.pending != null) {
+			cancelParentFailureTimeout(state.pending);
+			state.pending = null;
+		}
+	}
+
+	/**
+	 * Ask for a standby replacement of the dead parent among the candidates
+	 * that are not our parents already. The dead parent stays, and is still
+	 * heartbeated, until the answer replaces it. Without a standby nothing
+	 * is asked, its next missed heartbeat tries again
+	 */
+	private void replaceParent(NatedAddress failed) {
+		List<NatedAddress> standby = rankParents(failed);
+		standby.removeIf(x -> parentStates.containsKey(x.getId()));
+		if (standby.isEmpty()) {
+			log.debug("Node {} has no standby parent for {}, will try later...",
+					selfAddress.getId(), failed.getId());
+			return;
+		}
+		trigger(new NatRequest(standby), nat);
+	}
+
+	/**
+	 * Keep the heartbeat state of the parents we still have and start fresh
+	 * for the new ones
+	 */
+	private void resetParentStates() {
+		Map<Integer, ParentState> old = new HashMap<>(parentStates);
+		parentStates.clear();
+		for (NatedAddress parent : selfAddress.getParents()) {
+			ParentState state = old.remove(parent.getId());
+			parentStates.put(parent.getId(), state != null ? state
+					: new ParentState(parent));
+		}
+		for (ParentState dropped : old.values()) {
+			if (dropped.pending != null) {
+				cancelParentFailureTimeout(dropped.pending);
+			}
+		}
+	}
+
+	/**
+	 * A new parent set has to be announced with a new incarnation when it
+	 * drops a parent of the announced address, peers would go on relaying
+	 * through that parent otherwise
+	 * @param advertised Parents of the address peers know us by
+	 * @param parents The new parents
+	 * @return True if some advertised parent is not a parent anymore
+	 */
+	static boolean dropsAdvertised(Set<NatedAddress> advertised,
+			Set<NatedAddress> parents) {
+		for (NatedAddress parent : advertised) {
+			if (!parents.contains(parent)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Open nodes of the last sample other than the failed parent, by
+	 * increasing round trip time plus relay load. Nodes never measured are
+	 * ranked after the measured ones with the same load
+	 */
+	private List<NatedAddress> rankParents(NatedAddress failed) {
+		List<NatedAddress> candidates = new ArrayList<>(sample.size());
+		for (Container<NatedAddress, Object> container : sample) {
+			if (!container.getSource().equals(failed)) {
+				candidates.add(container.getSource());
+			}
+		}
+		candidates.sort(Comparator.comparingDouble(x -> parentScore(x)));
+		return candidates;
+	}
+
+	private double parentScore(NatedAddress candidate) {
+		Integer load = sampleLoad.get(candidate.getId());
+		return rtts.get(candidate.getId(), UNKNOWN_RTT)
+				+ (load == null ? 0 : LOAD_WEIGHT * load);
+	}
+
+	/**
+	 * Feed the answer of a heartbeat or SWIM ping into the round trip times
+	 */
+	private void measureRtt(UUID probe, NatedAddress from) {
+		Long sentAt = probesSentAt.remove(probe);
+		if (sentAt != null) {
+			rtts.sample(from.getId(), System.currentTimeMillis() - sentAt);
+		}
+	}
+
+	/**
+	 * Tell Croupier how many NAT nodes we relay for, when it changes
+	 */
+	private void advertiseRelayLoad() {
+		long now = System.currentTimeMillis();
+		children.values().removeIf(lastHeard -> now - lastHeard > CHILD_TIMEOUT);
+		if (children.size() != advertisedChildren) {
+			advertisedChildren = children.size();
+			trigger(new CroupierUpdate.View<RelayView>(new RelayView(
+					advertisedChildren)), croupier);
+		}
+	}
+
+	/**
+	 * Returns the parent to relay through to a NAT destination. The same
+	 * parent is used while it answers, a relayed ping left unanswered for
+	 * RELAY_TIMEOUT moves the destination to its next parent.
+	 */
+	private NatedAddress relayFor(NatedAddress destination, Object content) {
+		RelayChoice choice = relays.get(destination.getId());
+		Set<NatedAddress> parents = destination.getParents();
+		if (choice == null || !choice.sameParents(parents)) {
+			choice = new RelayChoice(parents, rand);
+			relays.put(destination.getId(), choice);
+		}
+
+		long now = System.currentTimeMillis();
+		if (choice.awaiting != null && now - choice.awaitingSince > RELAY_TIMEOUT) {
+			choice.failover();
+		}
+		if (content instanceof Ping && choice.awaiting == null) {
+			choice.awaiting = ((Ping) content).getPingTimeoutUUID();
+			choice.awaitingSince = now;
+		}
+		return choice.current();
+	}
+
+	/**
+	 * @return The new address of a former child still in its handover
+	 *         window, null otherwise.
+	 */
+	private NatedAddress movedChild(NatedAddress destination) {
+		MovedChild moved = handovers.get(destination.getId());
+		if (moved == null) {
+			return null;
+		}
+		if (System.currentTimeMillis() > moved.until) {
+			handovers.remove(destination.getId());
+			return null;
+		}
+		return moved.address;
+	}
+
+	/**
+	 * Relays a message for a former child through one of its new parents
+	 */
+	private void forwardToNewParent(NetMsg<Object> msg,
+			SourceHeader<NatedAddress> sourceHeader, NatedAddress moved) {
+		if (moved.getParents().isEmpty()) {
+			log.debug("{} moved child:{} has no parents - dropping:{}",
+					new Object[] { selfAddress.getId(), moved.getId(), msg });
+			return;
+		}
+		// No answer comes back through us, so failover is not tracked
+		NatedAddress parent = relayFor(moved, null);
+		log.debug("{} forwarding message for moved child:{} to:{}",
+				new Object[] { selfAddress.getId(), moved.getId(), parent });
+		Header<NatedAddress> movedHeader = new BasicHeader<NatedAddress>(
+				sourceHeader.getSource(), moved, sourceHeader.getProtocol());
+		send(msg.copyMessage(new SourceHeader<NatedAddress>(movedHeader,
+				parent)), parent);
+	}
+
+	/**
+	 * Sends a message to a NAT node without relays if a direct route to it
+	 * works. A direct SWIM ping left unanswered for PUNCH_TIMEOUT brings the
+	 * route down, and the traffic goes back to the relays.
+	 * 
+	 * @return False if the message still has to be relayed.
+	 */
+	private boolean sendDirect(NetMsg<Object> msg) {
+		NatedAddress destination = msg.getHeader().getDestination();
+		DirectRoute route = directRoutes.get(destination.getId());
+		if (route == null) {
+			// No contact with it yet
+			return false;
+		}
+
+		long now = System.currentTimeMillis();
+		switch (route.state) {
+		case UP:
+			if (route.awaiting != null
+					&& now - route.awaitingSince > PUNCH_TIMEOUT) {
+				log.debug("{} direct route to:{} is down", new Object[] {
+						selfAddress.getId(), destination.getId() });
+				route.down(now);
+				return false;
+			}
+			if (msg.getContent() instanceof Ping && route.awaiting == null) {
+				route.awaiting = ((Ping) msg.getContent()).getPingTimeoutUUID();
+				route.awaitingSince = now;
+			}
+			log.info("{} sending direct message:{} to nated:{}", new Object[] {
+					selfAddress.getId(), msg, destination });
+			send(msg, destination);
+			return true;
+		case PUNCHING:
+			if (now - route.awaitingSince > PUNCH_TIMEOUT) {
+				route.down(now);
+			}
+			return false;
+		case DOWN:
+			if (now < route.retryAt) {
+				return false;
+			}
+			// Fall through and try again
+		default:
+			// Probe the direct path, the message itself is still relayed
+			route.state = DirectState.PUNCHING;
+			route.awaiting = UUID.randomUUID();
+			route.awaitingSince = now;
+			opened(destination);
+			trigger(new NetNatPing(selfAddress, destination, route.awaiting),
+					network);
+			return false;
+		}
+	}
+
+	/**
+	 * We heard from a NAT node, a direct route to it may work
+	 */
+	private void directContact(NatedAddress source) {
+		if (directUpgrade && !source.isOpen()
+				&& !directRoutes.containsKey(source.getId())) {
+			directRoutes.put(source.getId(), new DirectRoute());
+		}
+	}
+
+	/**
+	 * Our message to a destination opens a mapping for its answers through
+	 * our NAT
+	 */
+	private void opened(NatedAddress destination) {
+		if (!selfAddress.isOpen()
+				&& natFiltering != NatFiltering.ENDPOINT_INDEPENDENT) {
+			mappings.put(destination.getId(), System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Emulates the inbound filtering of our NAT, the simulator delivers
+	 * everything. Traffic that gets through also keeps the mapping alive,
+	 * as parents we hear from often are not heartbeated
+	 * 
+	 * @return True if our NAT would have dropped a message from this node.
+	 */
+	private boolean filtered(NatedAddress from) {
+		if (selfAddress.isOpen()
+				|| natFiltering == NatFiltering.ENDPOINT_INDEPENDENT) {
+			return false;
+		}
+		long now = System.currentTimeMillis();
+		Long sentAt = mappings.get(from.getId());
+		if (sentAt == null || now - sentAt > MAPPING_TIMEOUT) {
+			log.debug("{} NAT filtering drops message from:{}", new Object[] {
+					selfAddress.getId(), from.getId() });
+			return true;
+		}
+		mappings.put(from.getId(), now);
+		return false;
+	}
+
+	private void punchAnswered(NatedAddress from, UUID probe) {
+		DirectRoute route = directRoutes.get(from.getId());
+		if (route != null && route.state == DirectState.PUNCHING
+				&& probe.equals(route.awaiting)) {
+			log.debug("{} direct route to:{} is up", new Object[] {
+					selfAddress.getId(), from.getId() });
+			route.state = DirectState.UP;
+			route.awaiting = null;
+		}
+	}
+
+	private void directAnswered(NatedAddress from, UUID probe) {
+		DirectRoute route = directRoutes.get(from.getId());
+		if (route != null && route.state == DirectState.UP
+				&& probe.equals(route.awaiting)) {
+			route.awaiting = null;
+		}
+	}
+
+	/**
+	 * Failure detector messages, sent through two parents when hedging
+	 */
+	private static boolean isHedged(Object content) {
+		if (content instanceof Payload) {
+			byte type = ((Payload) content).getType();
+			return type == SwimCodec.PING || type == SwimCodec.INDIRECT_PING;
+		}
+		return content instanceof Ping || content instanceof IndirectPing;
+	}
+
+	/**
+	 * True if a hedged message was already delivered. Indirect pings of
+	 * different helpers share the requester's UUID, so the sender is part of
+	 * the key
+	 */
+	private boolean isDuplicate(NatedAddress source, Object content) {
+		Object id;
+		if (content instanceof Payload) {
+			if (!isHedged(content)) {
+				return false;
+			}
+			// Both copies carry the same encoded bytes
+			id = ByteBuffer.wrap(((Payload) content).getBytes());
+		} else if (content instanceof Ping) {
+			id = ((Ping) content).getPingTimeoutUUID();
+		} else if (content instanceof IndirectPing) {
+			id = ((IndirectPing) content).getDeadPingTimeout();
+		} else {
+			return false;
+		}
+		return !hedgedSeen.add(new AbstractMap.SimpleImmutableEntry<>(
+				source.getId(), id));
+	}
+
+	/**
+	 * A pong came back through the current relay of the destination
+	 */
+	private void relayAnswered(NatedAddress from, UUID probe) {
+		RelayChoice choice = relays.get(from.getId());
+		if (choice != null && probe.equals(choice.awaiting)) {
+			choice.awaiting = null;
 		}
-		return it.next();
 	}
 
 	public static class NatTraversalInit extends Init<NatTraversalComp> {
 
 		public final NatedAddress selfAddress;
 		public final long seed;
+		public final NatTraversalConfig config;
 
 		public NatTraversalInit(NatedAddress selfAddress, long seed) {
+			this(selfAddress, seed, new NatTraversalConfig());
+		}
+
+		public NatTraversalInit(NatedAddress selfAddress, long seed,
+				NatTraversalConfig config) {
 			this.selfAddress = selfAddress;
 			this.seed = seed;
+			this.config = config;
 		}
 	}
 
 	private UUID schedulePeriodicHB() {
-		SchedulePeriodicTimeout spt = new SchedulePeriodicTimeout(1000, 1000);
+		SchedulePeriodicTimeout spt = new SchedulePeriodicTimeout(HB_PERIOD, HB_PERIOD);
 		HeartBeatTimeout hbtime = new HeartBeatTimeout(spt);
 		spt.setTimeoutEvent(hbtime);
 		UUID pingTimeoutId = hbtime.getTimeoutId();
@@ -413,4 +1206,122 @@ public class NatTraversalComp extends ComponentDefinition {
 			return peer;
 		}
 	}
+
+	private UUID scheduleFlush() {
+		ScheduleTimeout st = new ScheduleTimeout(batchWindow);
+		FlushTimeout ft = new FlushTimeout(st);
+		st.setTimeoutEvent(ft);
+		trigger(st, timer);
+
+		return ft.getTimeoutId();
+	}
+
+	private static class FlushTimeout extends Timeout {
+
+		public FlushTimeout(ScheduleTimeout request) {
+			super(request);
+		}
+	}
+
+	private static class PendingBatch {
+		private final List<NetMsg<Object>> messages = new ArrayList<>();
+		private int bytes;
+
+		public PendingBatch(int overhead) {
+			this.bytes = overhead;
+		}
+	}
+
+	/**
+	 * Parents of a NAT destination and the one we relay through
+	 */
+	private static class RelayChoice {
+		private Set<NatedAddress> source;
+		private final NatedAddress[] parents;
+		private int index;
+		// Relayed ping we wait an answer for, null if there is none
+		private UUID awaiting;
+		private long awaitingSince;
+
+		public RelayChoice(Set<NatedAddress> parents, Random rand) {
+			this.source = parents;
+			this.parents = parents.toArray(new NatedAddress[parents.size()]);
+			this.index = rand.nextInt(this.parents.length);
+		}
+
+		public boolean sameParents(Set<NatedAddress> parents) {
+			if (parents == source) {
+				return true;
+			}
+			if (parents.size() == this.parents.length && parents.equals(source)) {
+				source = parents;
+				return true;
+			}
+			return false;
+		}
+
+		public NatedAddress current() {
+			return parents[index];
+		}
+
+		public NatedAddress next() {
+			return parents[(index + 1) % parents.length];
+		}
+
+		public void failover() {
+			index = (index + 1) % parents.length;
+			awaiting = null;
+		}
+	}
+
+	/**
+	 * Where a former child moved and until when we forward for it
+	 */
+	private static class MovedChild {
+		private final NatedAddress address;
+		private final long until;
+
+		public MovedChild(NatedAddress address, long until) {
+			this.address = address;
+			this.until = until;
+		}
+	}
+
+	private enum DirectState {
+		CONTACTED, PUNCHING, UP, DOWN
+	}
+
+	/**
+	 * Direct path to a NAT node we had contact with
+	 */
+	private static class DirectRoute {
+		private DirectState state = DirectState.CONTACTED;
+		// Punch or direct ping we wait an answer for, null if there is none
+		private UUID awaiting;
+		private long awaitingSince;
+		private long retryAt;
+
+		public void down(long now) {
+			state = DirectState.DOWN;
+			awaiting = null;
+			retryAt = now + PUNCH_RETRY;
+		}
+	}
+
+	/**
+	 * Heartbeat state of one parent
+	 */
+	private static class ParentState {
+		private final NatedAddress parent;
+		// Timeout of the heartbeat in flight, null if there is none
+		private UUID pending;
+		private long lastSent;
+		// Last message relayed by it, heartbeat pongs not included
+		private long lastHeard;
+		private int misses;
+
+		public ParentState(NatedAddress parent) {
+			this.parent = parent;
+		}
+	}
 }
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * GVoD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.swim;
+
+/**
+ * Configuration of the NAT traversal layer. Every mode is off by default, a
+ * NAT node then relays everything through its parents and replaces the
+ * whole parent set when one of them dies. Modes are turned on with the
+ * copying with* methods and can be combined.
+ */
+public class NatTraversalConfig {
+
+	public final long batchWindow;
+	public final boolean opaqueRelay;
+	public final boolean singleParentReplacement;
+	public final boolean hedgedRelay;
+	public final boolean directUpgrade;
+	public final NatFiltering natFiltering;
+	public final int datagramBytes;
+
+	public NatTraversalConfig() {
+		this(0, false, false, false, false, NatFiltering.ENDPOINT_INDEPENDENT,
+				0);
+	}
+
+	private NatTraversalConfig(long batchWindow, boolean opaqueRelay,
+			boolean singleParentReplacement, boolean hedgedRelay,
+			boolean directUpgrade, NatFiltering natFiltering,
+			int datagramBytes) {
+		this.batchWindow = batchWindow;
+		this.opaqueRelay = opaqueRelay;
+		this.singleParentReplacement = singleParentReplacement;
+		this.hedgedRelay = hedgedRelay;
+		this.directUpgrade = directUpgrade;
+		this.natFiltering = natFiltering;
+		this.datagramBytes = datagramBytes;
+	}
+
+	/**
+	 * @param batchWindow
+	 *            Milliseconds messages to the same next hop are held to be
+	 *            sent together, 0 to send every message on its own.
+	 */
+	public NatTraversalConfig withBatchWindow(long batchWindow) {
+		return new NatTraversalConfig(batchWindow, opaqueRelay,
+				singleParentReplacement, hedgedRelay, directUpgrade,
+				natFiltering, datagramBytes);
+	}
+
+	/**
+	 * Send relayed SWIM messages as encoded payloads, that relays forward
+	 * without decoding. Every hop still allocates a new message around the
+	 * shared bytes, and the sender encodes and the child decodes on top of
+	 * that, see {@link se.kth.swim.util.RelayCostReport}.
+	 */
+	public NatTraversalConfig withOpaqueRelay() {
+		return new NatTraversalConfig(batchWindow, true,
+				singleParentReplacement, hedgedRelay, directUpgrade,
+				natFiltering, datagramBytes);
+	}
+
+	/**
+	 * Replace only a dead parent instead of the whole parent set. The new
+	 * address is announced when it drops a parent peers know about, parents
+	 * only we know about change silently.
+	 */
+	public NatTraversalConfig withSingleParentReplacement() {
+		return new NatTraversalConfig(batchWindow, opaqueRelay, true,
+				hedgedRelay, directUpgrade, natFiltering, datagramBytes);
+	}
+
+	/**
+	 * Send pings and indirect pings to NAT nodes through two parents, the
+	 * receiver drops the second copy.
+	 */
+	public NatTraversalConfig withHedgedRelay() {
+		return new NatTraversalConfig(batchWindow, opaqueRelay,
+				singleParentReplacement, true, directUpgrade, natFiltering,
+				datagramBytes);
+	}
+
+	/**
+	 * Send to NAT nodes without relays once a direct probe to them is
+	 * answered, falling back to relays on failure. The probe only gets
+	 * through if the filtering of the destination NAT lets it.
+	 */
+	public NatTraversalConfig withDirectUpgrade() {
+		return new NatTraversalConfig(batchWindow, opaqueRelay,
+				singleParentReplacement, hedgedRelay, true, natFiltering,
+				datagramBytes);
+	}
+
+	/**
+	 * @param natFiltering
+	 *            Filtering of the NAT this node is behind, endpoint
+	 *            independent by default. Ignored on open nodes.
+	 */
+	public NatTraversalConfig withNatFiltering(NatFiltering natFiltering) {
+		return new NatTraversalConfig(batchWindow, opaqueRelay,
+				singleParentReplacement, hedgedRelay, directUpgrade,
+				natFiltering, datagramBytes);
+	}
+
+	/**
+	 * @param datagramBytes
+	 *            Maximum encoded size of a batch, 0 for no byte limit.
+	 *            {@link HostComp} sets it to the datagram size of the SWIM
+	 *            configuration.
+	 */
+	public NatTraversalConfig withDatagramBytes(int datagramBytes) {
+		return new NatTraversalConfig(batchWindow, opaqueRelay,
+				singleParentReplacement, hedgedRelay, directUpgrade,
+				natFiltering, datagramBytes);
+	}
+}
@@ -1,209 +1,160 @@
 package se.kth.swim;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 import java.util.Random;
-import java.util.stream.Collectors;
 
-public class PeerExchangeSelection {
-	public static List<Peer> getPeers(List<Member> members, Integer size,
-			Integer maxInfection) {
-		List<Peer> ret = new ArrayList<>();
-
-		List<Member> selectables = members.stream()
-				.filter(x -> x.getInfectionTime() <= maxInfection)
-				.collect(Collectors.toList());
-
-		while (ret.size() < Math.min(selectables.size(), size)) {
-			ret.add(selectables.get(ret.size()).getPeer());
-		}
+import se.kth.swim.msg.net.PiggybackBudget;
 
-		return ret;
+public class PeerExchangeSelection {
+	/**
+	 * Returns the peers to piggyback, less infected first, and increments
+	 * their infection time.
+	 * 
+	 * @param members
+	 *            Membership list of the peer.
+	 * @param size
+	 *            The maximum number of peers to piggyback.
+	 * @param maxInfection
+	 *            Members infected more than this are not spread anymore.
+	 * @param budget
+	 *            Bytes available for the piggyback, null for no byte limit.
+	 * @return Peers to piggyback.
+	 */
+	public static List<Peer> getPeers(Membership members, Integer size,
+			Integer maxInfection, PiggybackBudget budget) {
+		return members.disseminate(size, maxInfection, budget);
 	}
 
   /**
    * Merges the received piggybacked information with the membership list.
+   * Only the k received entries are looked up and the local view is updated
+   * in place, so the cost does not depend on the size of the view. When the
+   * piggyback holds the same node more than once only the entry that
+   * supersedes the others is merged, whatever their order.
    * @param self Peer that invokes the merge operation.
-   * @param localView Membership list of the peer.
+   * @param localView Membership list of the peer, updated in place.
    * @param receivedView View received in the piggybacked information.
-   * @return The new merged membership list.
    */
-	public static List<Member> merge(Peer self, List<Member> localView,
+	public static void merge(Peer self, Membership localView,
 			List<Peer> receivedView) {
 		
-		Integer minPinged = getMinimumPinged(localView);
-		
-		List<Member> ret = new ArrayList<>();
-		List<Peer> listViewPeers = localView.stream().map(y -> y.getPeer())
-				.collect(Collectors.toList());
+		for (int i = 0; i < receivedView.size(); i++) {
+			Peer x = receivedView.get(i);
+			if (isSupersededInPiggyback(receivedView, i)) {
+				continue;
+			}
+			int id = x.getNode().getId();
 
-		receivedView.forEach(x -> {
 			if (x.equals(self)) {
-				// If the state is different and the incarnation less or
-				// equal...
+				// If somebody thinks we are not alive, we refute it with a
+				// larger incarnation. Never go back to an older incarnation.
 				if (!x.getState().equals(NodeState.ALIVE)) {
-					// ... we reset the infection (so we spread fresher info)
-					// and increase the incarnation
 					self.setState(NodeState.ALIVE);
-					self.setIncarnation(x.getIncarnation() + 1);
+					self.setIncarnation(Math.max(self.getIncarnation(),
+							x.getIncarnation() + 1));
 				}
 
-				Member tmpPeer = new Member(self);
-				tmpPeer.setPingedTimes(Integer.MAX_VALUE);
-				ret.add(tmpPeer);
-			} else if (listViewPeers.contains(x)) {
-				Peer peer = listViewPeers.get(listViewPeers.indexOf(x));
-				Member tmpPeer;
-				if (x.getState().equals(NodeState.ALIVE)
-						&& x.getIncarnation() > peer.getIncarnation()) {
-					// ...
-					tmpPeer = new Member(x);
-					tmpPeer.setPingedTimes(minPinged);
-					ret.add(tmpPeer);
-			} else if (x.getState().equals(NodeState.SUSPECTED)
-					&& peer.getState().equals(NodeState.SUSPECTED)
-					&& x.getIncarnation() > peer.getIncarnation()) {
-				// ...
-				tmpPeer = new Member(x);
-				tmpPeer.setPingedTimes(minPinged);
-				ret.add(tmpPeer);
-			} else if (x.getState().equals(NodeState.SUSPECTED)
-					&& peer.getState().equals(NodeState.ALIVE)
-					&& x.getIncarnation() >= peer.getIncarnation()) {
-				// ...
-				tmpPeer = new Member(x);
-				tmpPeer.setPingedTimes(minPinged);
-				ret.add(tmpPeer);
-			} else if (x.getState().equals(NodeState.DEAD)
-					&& (peer.getState().equals(NodeState.ALIVE) || peer
-							.getState().equals(NodeState.SUSPECTED))) {
-				// ...
-				tmpPeer = new Member(x);
-				tmpPeer.setPingedTimes(minPinged);
-				ret.add(tmpPeer);
+				// We reset our infection so we spread fresher info
+				localView.put(self);
+			} else if (!localView.contains(id)) {
+				// If we don't have it in our members list we just add it.
+				localView.put(x);
+			} else if (overrides(x, localView.getState(id),
+					localView.getIncarnation(id))) {
+				localView.put(x);
 			}
-		} else {
-			// If we don't have it in our members list we just add it.
-			
-			Member tmpPeer = new Member(x);
-			tmpPeer.setPingedTimes(minPinged);
-			ret.add(tmpPeer);
+			// Otherwise the local information is fresher and is kept
 		}
-	})	;
-
-		// Appends the rest of the members if they are not updated from the
-		// piggyback.
-		localView.forEach(x -> {
-			if (!ret.contains(x)) {
-				ret.add(x);
-			}
-		});
-
-		// Eventually it returns, hopefully.
-		return ret;
 	}
 
 	/**
-	 * Returns the list of peers selectable for being pinged (Not self, alive
-	 * and suspected)
+	 * The piggyback is a few entries, a scan is cheaper than a lookup table.
 	 * 
-	 * @param self
-	 *            Peer that wants to invoke the ping.
-	 * @param members
-	 *            Members list of the peer.
-	 * @return List of peers eligible for ping.
+	 * @return True if another entry of the same node supersedes the i-th
+	 *         one: it has a larger incarnation or, on the same incarnation,
+	 *         a later state. Of identical entries the first one is kept.
 	 */
-	public static List<Member> getPingableTargets(Peer self,
-			List<Member> members) {
-
-		List<Member> membersWself = members.stream().filter(x -> !x.getPeer().equals(self)).collect(Collectors.toList());
-		
-		
-		Integer minPingedValue = getMinimumPinged(membersWself);
-
-		return members
-				.stream()
-				.filter(x -> !x.getPeer().equals(self)
-						&& (x.getPeer().getState().equals(NodeState.SUSPECTED) || x
-								.getPeer().getState().equals(NodeState.ALIVE))
-						&& x.getPingedTimes().equals(minPingedValue))
-				.collect(Collectors.toList());
-	}
-
-  /**
-   * Returns the sorting policy to get members with lowest ping time
-   * @param members The membership list
-   * @return Integer number.
-   */
-	private static Integer getMinimumPinged(List<Member> members) {
-
-		Collections.sort(members, new Comparator<Member>() {
-			public int compare(Member o1, Member o2) {
-				if (o1.getPingedTimes() < o2.getPingedTimes()) {
-					return -1;
-				} else if (o1.getPingedTimes() > o2.getPingedTimes()) {
-					return 1;
-				} else {
-					return 0;
+	static boolean isSupersededInPiggyback(List<Peer> receivedView, int i) {
+		Peer x = receivedView.get(i);
+		int id = x.getNode().getId();
+		for (int j = 0; j < receivedView.size(); j++) {
+			Peer other = receivedView.get(j);
+			if (j == i || other.getNode().getId() != id) {
+				continue;
+			}
+			if (other.getIncarnation() != x.getIncarnation()) {
+				if (other.getIncarnation() > x.getIncarnation()) {
+					return true;
 				}
-			};
-		});
-
-		return members.get(0).getPingedTimes();
+			} else if (other.getState() != x.getState()) {
+				if (other.getState().ordinal() > x.getState().ordinal()) {
+					return true;
+				}
+			} else if (j < i) {
+				return true;
+			}
+		}
+		return false;
 	}
 
 	/**
-	 * Increments the infection time of the piggybacked nodes.
+	 * Precedence rules between the received and the local information about
+	 * the same node.
 	 * 
-	 * @param list
-	 *            Membership list to update.
-	 * @param piggyback
-	 *            Piggybacked information received.
+	 * @param received
+	 *            Peer received in a piggyback.
+	 * @param localState
+	 *            State of the same node in the local view.
+	 * @param localIncarnation
+	 *            Incarnation of the same node in the local view.
+	 * @return True if the received information should replace the local one.
 	 */
-	public static void updateInfectionTime(List<Member> list,
-			List<Peer> piggyback) {
-		list.forEach(x -> {
-			if (piggyback.contains(x.getPeer())) {
-				x.incInfectionTime();
+	public static boolean overrides(Peer received, NodeState localState,
+			int localIncarnation) {
+		switch (received.getState()) {
+		case ALIVE:
+			return received.getIncarnation() > localIncarnation;
+		case SUSPECTED:
+			if (localState.equals(NodeState.SUSPECTED)) {
+				return received.getIncarnation() > localIncarnation;
 			}
-		});
+			return localState.equals(NodeState.ALIVE)
+					&& received.getIncarnation() >= localIncarnation;
+		case DEAD:
+			return !localState.equals(NodeState.DEAD);
+		default:
+			return false;
+		}
 	}
 
 	/**
-	 * Returns a Membership list of random peer for the indirect ping.
+	 * Returns the peer to ping next, in randomized round-robin order. Self
+	 * and dead members are never selected.
+	 * 
+	 * @param members
+	 *            Members list of the peer.
+	 * @return Peer to ping or null if there is none.
+	 */
+	public static Peer getPingTarget(Membership members) {
+		return members.nextProbeTarget();
+	}
+
+	/**
+	 * Selects random alive peers for the indirect ping, uniformly among all
+	 * the alive members of the view.
 	 * 
 	 * @param list
 	 *            The membership list.
 	 * @param size
-	 *            The maximum size of the returned membership list of peers.
-	 * @return Membership list of peers.
+	 *            The maximum number of peers to select.
+	 * @param rand
+	 *            Source of randomness.
+	 * @param ret
+	 *            Cleared and filled with the selected peers.
 	 */
-	public static List<Peer> getIndirectPingPeers(List<Member> list, int size,
-			Random rand, Peer self) {
-		// Returns a list of alive peers.
-		List<Peer> alivePeers = list
-				.stream()
-				.filter(x -> x.getPeer().getState().equals(NodeState.ALIVE)
-						&& !x.getPeer().equals(self)).map(x -> x.getPeer())
-				.collect(Collectors.toList());
-
-		List<Peer> ret = new ArrayList<>();
-
-		// Peers selection loop.
-		while (ret.size() < Math.min(size, alivePeers.size())
-				&& ret.size() < list.size()) {
-
-			int rn = rand.nextInt(Math.min(size, alivePeers.size()));
-
-			if (ret.contains(alivePeers.get(rn))) {
-				continue;
-			}
-
-			ret.add(alivePeers.get(rn));
-		}
-
-		return ret;
+	public static void getIndirectPingPeers(Membership list, int size,
+			Random rand, List<Peer> ret) {
+		ret.clear();
+		list.sampleAlive(size, rand, ret);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * GVoD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.swim;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import se.kth.swim.msg.net.PiggybackBudget;
+import se.kth.swim.util.IntIntMap;
+import se.sics.p2ptoolbox.util.network.NatedAddress;
+
+/**
+ * Primitive layout of the {@link Membership} view, meant for very large
+ * views. Every node gets a dense slot and its information is kept in
+ * parallel arrays indexed by that slot, with an id to slot {@link IntIntMap}.
+ * There are no per member objects besides the shared addresses, peers are
+ * only created when they are first handed out. They are then kept per slot
+ * until the member is put again, as {@link MembershipTable} keeps its own.
+ * 
+ * The auxiliary structures are the same as in {@link MembershipTable}, on
+ * slots: infection buckets as doubly linked lists through the slots, a
+ * shuffled probe order and state groups with swap-remove.
+ */
+public class PrimitiveMembershipTable implements Membership {
+	private static final int NONE = -1;
+	private static final NodeState[] STATES = NodeState.values();
+
+	private final int selfId;
+	private final Random rand;
+	private final IntIntMap slots;
+	private int size;
+
+	// Member information, indexed by slot
+	private NatedAddress[] addresses;
+	private byte[] states;
+	private int[] incarnations;
+	private int[] infectionTimes;
+	// Peers handed out, null until first asked for
+	private Peer[] peers;
+
+	// Dissemination buckets, linked through the slots
+	private int[] bucketPrev;
+	private int[] bucketNext;
+	private int[] heads;
+	private int[] tails;
+	private int[] selected;
+
+	// Randomized round-robin probe order of the slots
+	private int[] probeOrder;
+	private int[] probeIndex;
+	private int probeSize;
+	private int probeNext;
+
+	// Slots grouped by state and the position of each slot in its group
+	private final int[][] groups;
+	private final int[] groupSizes;
+	private int[] groupIndex;
+
+	/**
+	 * @param selfId
+	 *            Id of the local node, it is never selected as ping target.
+	 * @param rand
+	 *            Source of randomness for the probe order.
+	 * @param capacity
+	 *            Expected number of members, the table grows if needed.
+	 */
+	public PrimitiveMembershipTable(int selfId, Random rand, int capacity) {
+		capacity = Math.max(capacity, 4);
+		this.selfId = selfId;
+		this.rand = rand;
+		this.slots = new IntIntMap(capacity, NONE);
+		this.size = 0;
+
+		this.addresses = new NatedAddress[capacity];
+		this.states = new byte[capacity];
+		this.incarnations = new int[capacity];
+		this.infectionTimes = new int[capacity];
+		this.peers = new Peer[capacity];
+
+		this.bucketPrev = new int[capacity];
+		this.bucketNext = new int[capacity];
+		this.heads = new int[8];
+		this.tails = new int[8];
+		Arrays.fill(heads, NONE);
+		Arrays.fill(tails, NONE);
+		this.selected = new int[8];
+
+		this.probeOrder = new int[capacity];
+		this.probeIndex = new int[capacity];
+		this.probeSize = 0;
+		this.probeNext = 0;
+
+		this.groups = new int[STATES.length][capacity];
+		this.groupSizes = new int[STATES.length];
+		this.groupIndex = new int[capacity];
+	}
+
+	@Override
+	public boolean contains(int id) {
+		return slots.containsKey(id);
+	}
+
+	@Override
+	public Peer getPeer(int id) {
+		int slot = slots.get(id);
+		return slot == NONE ? null : peerOf(slot);
+	}
+
+	@Override
+	public NodeState getState(int id) {
+		int slot = slots.get(id);
+		return slot == NONE ? null : STATES[states[slot]];
+	}
+
+	@Override
+	public int getIncarnation(int id) {
+		int slot = slots.get(id);
+		return slot == NONE ? 0 : incarnations[slot];
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public void put(Peer peer) {
+		int id = peer.getNode().getId();
+		int slot = slots.get(id);
+
+		// A new member is not in the probe order yet, as if it was dead
+		int before = NodeState.DEAD.ordinal();
+		if (slot == NONE) {
+			slot = size++;
+			ensureCapacity(size);
+			slots.put(id, slot);
+		} else {
+			before = states[slot];
+			removeFromBucket(slot);
+			removeFromGroup(slot);
+		}
+
+		addresses[slot] = peer.getNode();
+		states[slot] = (byte) peer.getState().ordinal();
+		incarnations[slot] = peer.getIncarnation();
+		infectionTimes[slot] = 0;
+		peers[slot] = null;
+		addToBucket(slot);
+		addToGroup(slot);
+		updateProbes(slot, id, before);
+	}
+
+	@Override
+	public void setState(int id, NodeState state) {
+		int slot = slots.get(id);
+		if (slot != NONE) {
+			int before = states[slot];
+			removeFromGroup(slot);
+			states[slot] = (byte) state.ordinal();
+			if (peers[slot] != null) {
+				peers[slot].setState(state);
+			}
+			addToGroup(slot);
+			updateProbes(slot, id, before);
+		}
+	}
+
+	@Override
+	public void resetInfectionTime(int id) {
+		int slot = slots.get(id);
+		if (slot != NONE) {
+			removeFromBucket(slot);
+			infectionTimes[slot] = 0;
+			addToBucket(slot);
+		}
+	}
+
+	@Override
+	public Peer nextProbeTarget() {
+		if (probeSize == 0) {
+			return null;
+		}
+		if (probeNext >= probeSize) {
+			for (int i = probeSize - 1; i > 0; i--) {
+				swapProbes(i, rand.nextInt(i + 1));
+			}
+			probeNext = 0;
+		}
+		return peerOf(probeOrder[probeNext++]);
+	}
+
+	@Override
+	public List<Peer> disseminate(int size, int maxInfection,
+			PiggybackBudget budget) {
+		if (selected.length < size) {
+			selected = new int[size];
+		}
+		int count = 0;
+		int skipped = 0;
+		int last = Math.min(maxInfection, heads.length - 1);
+		scan: for (int bucket = 0; bucket <= last && count < size; bucket++) {
+			for (int slot = heads[bucket]; slot != NONE && count < size; slot = bucketNext[slot]) {
+				if (budget == null || budget.tryAdd(peerOf(slot))) {
+					selected[count++] = slot;
+				} else if (++skipped >= size || budget.isFull()) {
+					break scan;
+				}
+			}
+		}
+
+		// Moved only after the selection, otherwise they would be selected
+		// again from the next bucket
+		List<Peer> ret = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			int slot = selected[i];
+			removeFromBucket(slot);
+			infectionTimes[slot]++;
+			addToBucket(slot);
+			ret.add(peerOf(slot));
+		}
+
+		return ret;
+	}
+
+	@Override
+	public void sampleAlive(int size, Random rand, List<Peer> ret) {
+		int alive = NodeState.ALIVE.ordinal();
+		int n = groupSizes[alive];
+
+		// Move self out of the sampled range
+		int self = slots.get(selfId);
+		if (self != NONE && states[self] == alive) {
+			swapInGroup(alive, groupIndex[self], n - 1);
+			n--;
+		}
+
+		for (int i = 0; i < Math.min(size, n); i++) {
+			swapInGroup(alive, i, i + rand.nextInt(n - i));
+			ret.add(peerOf(groups[alive][i]));
+		}
+	}
+
+	@Override
+	public int count(NodeState state) {
+		return groupSizes[state.ordinal()];
+	}
+
+	private Peer peerOf(int slot) {
+		if (peers[slot] == null) {
+			peers[slot] = new Peer(addresses[slot], STATES[states[slot]],
+					incarnations[slot]);
+		}
+		return peers[slot];
+	}
+
+	private void addToBucket(int slot) {
+		int bucket = infectionTimes[slot];
+		if (bucket >= heads.length) {
+			int length = Math.max(bucket + 1, heads.length * 2);
+			int from = heads.length;
+			heads = Arrays.copyOf(heads, length);
+			tails = Arrays.copyOf(tails, length);
+			Arrays.fill(heads, from, length, NONE);
+			Arrays.fill(tails, from, length, NONE);
+		}
+		bucketPrev[slot] = tails[bucket];
+		bucketNext[slot] = NONE;
+		if (tails[bucket] == NONE) {
+			heads[bucket] = slot;
+		} else {
+			bucketNext[tails[bucket]] = slot;
+		}
+		tails[bucket] = slot;
+	}
+
+	private void removeFromBucket(int slot) {
+		int bucket = infectionTimes[slot];
+		if (bucketPrev[slot] == NONE) {
+			heads[bucket] = bucketNext[slot];
+		} else {
+			bucketNext[bucketPrev[slot]] = bucketNext[slot];
+		}
+		if (bucketNext[slot] == NONE) {
+			tails[bucket] = bucketPrev[slot];
+		} else {
+			bucketPrev[bucketNext[slot]] = bucketPrev[slot];
+		}
+	}
+
+	/**
+	 * Dead members leave the probe order and come back to it when they are
+	 * alive again. Self is never probed.
+	 */
+	private void updateProbes(int slot, int id, int before) {
+		if (id == selfId) {
+			return;
+		}
+		int dead = NodeState.DEAD.ordinal();
+		if (states[slot] == dead && before != dead) {
+			removeProbe(slot);
+		} else if (before == dead && states[slot] != dead) {
+			addProbe(slot);
+		}
+	}
+
+	/**
+	 * Members go to a random position of the part of the probe order not yet
+	 * visited in the current round.
+	 */
+	private void addProbe(int slot) {
+		int position = probeNext + rand.nextInt(probeSize - probeNext + 1);
+		probeOrder[probeSize] = slot;
+		probeIndex[slot] = probeSize++;
+		swapProbes(position, probeSize - 1);
+	}
+
+	private void removeProbe(int slot) {
+		int i = probeIndex[slot];
+		if (i < probeNext) {
+			// Already probed in this round, keep the probed part contiguous
+			probeNext--;
+			swapProbes(i, probeNext);
+			i = probeNext;
+		}
+		swapProbes(i, probeSize - 1);
+		probeSize--;
+	}
+
+	private void swapProbes(int i, int j) {
+		int tmp = probeOrder[i];
+		probeOrder[i] = probeOrder[j];
+		probeOrder[j] = tmp;
+		probeIndex[probeOrder[i]] = i;
+		probeIndex[probeOrder[j]] = j;
+	}
+
+	private void addToGroup(int slot) {
+		int state = states[slot];
+		groupIndex[slot] = groupSizes[state];
+		groups[state][groupSizes[state]++] = slot;
+	}
+
+	/**
+	 * Swap-remove, the order within a state group does not matter.
+	 */
+	private void removeFromGroup(int slot) {
+		int state = states[slot];
+		swapInGroup(state, groupIndex[slot], groupSizes[state] - 1);
+		groupSizes[state]--;
+	}
+
+	private void swapInGroup(int state, int i, int j) {
+		int[] group = groups[state];
+		int tmp = group[i];
+		group[i] = group[j];
+		group[j] = tmp;
+		groupIndex[group[i]] = i;
+		groupIndex[group[j]] = j;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity <= addresses.length) {
+			return;
+		}
+		int length = Math.max(capacity, addresses.length * 2);
+		addresses = Arrays.copyOf(addresses, length);
+		states = Arrays.copyOf(states, length);
+		incarnations = Arrays.copyOf(incarnations, length);
+		infectionTimes = Arrays.copyOf(infectionTimes, length);
+		peers = Arrays.copyOf(peers, length);
+		bucketPrev = Arrays.copyOf(bucketPrev, length);
+		bucketNext = Arrays.copyOf(bucketNext, length);
+		probeOrder = Arrays.copyOf(probeOrder, length);
+		probeIndex = Arrays.copyOf(probeIndex, length);
+		groupIndex = Arrays.copyOf(groupIndex, length);
+		for (int i = 0; i < groups.length; i++) {
+			groups[i] = Arrays.copyOf(groups[i], length);
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("[");
+		for (int slot = 0; slot < size; slot++) {
+			if (slot > 0) {
+				sb.append(", ");
+			}
+			sb.append("{").append(peerOf(slot)).append(",inf->")
+					.append(infectionTimes[slot]).append("}");
+		}
+		return sb.append("]").toString();
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * GVoD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.swim;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Randomized round-robin selection of ping targets, as in the SWIM paper.
+ * 
+ * The members are probed in the order of a shuffled list, one per protocol
+ * period. When the end of the list is reached the list is shuffled again
+ * and a new round starts. New members are inserted at a random position of
+ * the part not yet probed in the current round. Dead members are taken out
+ * of the list and put back the same way if they come back alive. Every
+ * member that is not dead is thus probed once per round, which bounds the
+ * time to detect its failure.
+ */
+public class ProbeScheduler {
+	private final List<Member> order;
+	private final Random rand;
+	private int next;
+
+	public ProbeScheduler(Random rand) {
+		this.order = new ArrayList<>();
+		this.rand = rand;
+		this.next = 0;
+	}
+
+	public void add(Member member) {
+		int position = next + rand.nextInt(order.size() - next + 1);
+		member.probeIndex = order.size();
+		order.add(member);
+		swap(position, order.size() - 1);
+	}
+
+	/**
+	 * Takes a member out of the probe order, the member must be in it.
+	 */
+	public void remove(Member member) {
+		int i = member.probeIndex;
+		if (i < next) {
+			// Already probed in this round, keep the probed part contiguous
+			next--;
+			swap(i, next);
+			i = next;
+		}
+		swap(i, order.size() - 1);
+		order.remove(order.size() - 1);
+	}
+
+	/**
+	 * @return Member to probe or null if there is none.
+	 */
+	public Member next() {
+		if (order.isEmpty()) {
+			return null;
+		}
+		if (next >= order.size()) {
+			newRound();
+		}
+		return order.get(next++);
+	}
+
+	public int size() {
+		return order.size();
+	}
+
+	private void newRound() {
+		for (int i = order.size() - 1; i > 0; i--) {
+			swap(i, rand.nextInt(i + 1));
+		}
+		next = 0;
+	}
+
+	private void swap(int i, int j) {
+		Member tmp = order.get(i);
+		order.set(i, order.get(j));
+		order.set(j, tmp);
+		order.get(i).probeIndex = i;
+		order.get(j).probeIndex = j;
+	}
+}
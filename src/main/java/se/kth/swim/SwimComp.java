@@ -19,9 +19,7 @@
 package se.kth.swim;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
-import java.util.Optional;
 import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
@@ -32,20 +30,26 @@ import org.slf4j.LoggerFactory;
 
 import se.kth.swim.msg.IndirectPing;
 import se.kth.swim.msg.IndirectPong;
+import se.kth.swim.msg.MessageCounter;
 import se.kth.swim.msg.StartIndirectPing;
 import se.kth.swim.msg.Status;
 import se.kth.swim.msg.StopIndirectPing;
 import se.kth.swim.msg.net.NetIndirectPing;
 import se.kth.swim.msg.net.NetIndirectPong;
+import se.kth.swim.msg.net.NetMsg;
 import se.kth.swim.msg.net.NetPing;
 import se.kth.swim.msg.net.NetPong;
 import se.kth.swim.msg.net.NetStartIndirectPing;
 import se.kth.swim.msg.net.NetStatus;
 import se.kth.swim.msg.net.NetStopIndirectPing;
+import se.kth.swim.msg.net.PiggybackBudget;
+import se.kth.swim.msg.net.SwimCodec;
 import se.kth.swim.nat.events.NatPort;
 import se.kth.swim.nat.events.NatRequest;
 import se.kth.swim.nat.events.NatResponse;
 import se.kth.swim.nat.events.NatUpdate;
+import se.kth.swim.nat.msg.NetPayload;
+import se.kth.swim.util.SequenceTable;
 import se.sics.kompics.ComponentDefinition;
 import se.sics.kompics.Handler;
 import se.sics.kompics.Init;
@@ -70,8 +74,14 @@ public class SwimComp extends ComponentDefinition {
 	// λlogn times
 	private final Integer INFECT_FACTOR;
 	private final Integer PIGGYBACK_SIZE;
+	// Maximum encoded size of a PING or PONG, 0 for no byte limit
+	private final int DATAGRAM_BYTES;
+	public static final int DEFAULT_DATAGRAM_BYTES = 1400;
 	private static final Integer INDIRECT_PING_SIZE = 2;
 	private Integer localSequenceNumber = 0;
+	// Tells our messages apart from those we sent before a restart, it is
+	// not drawn from the seeded random so that it changes on restart
+	private final int epoch = new Random().nextInt();
 
 	private Positive<Network> network = requires(Network.class);
 	private final Positive<Timer> timer = requires(Timer.class);
@@ -80,10 +90,12 @@ public class SwimComp extends ComponentDefinition {
 	private NatedAddress selfAddress;
 	private final Set<NatedAddress> bootstrapNodes;
 	private final NatedAddress aggregatorAddress;
-	private List<Member> members;
+	private Membership members;
 	private Peer self;
-	private Member selfMember;
 	private final Random rand;
+	private final List<Peer> indirectPingPeers;
+	// Message counters seen from every sender, members or not
+	private final SequenceTable sequenceNumbers;
 
 	private UUID pingTimeoutId;
 	private UUID statusTimeoutId;
@@ -96,16 +108,20 @@ public class SwimComp extends ComponentDefinition {
 		this.bootstrapNodes = init.bootstrapNodes;
 		this.aggregatorAddress = init.aggregatorAddress;
 		this.rand = new Random(init.getSeed());
+		this.indirectPingPeers = new ArrayList<>(INDIRECT_PING_SIZE);
+		this.sequenceNumbers = new SequenceTable(Math.max(
+				init.getMembershipCapacity(), init.bootstrapNodes.size()));
 		this.INFECT_FACTOR = init.getInfectionTime();
 		this.PIGGYBACK_SIZE = init.getPiggybackSize();
+		this.DATAGRAM_BYTES = init.getDatagramBytes();
 		
-		this.members = new ArrayList<>();
+		this.members = init.isPrimitiveMembership() ? new PrimitiveMembershipTable(
+				selfAddress.getId(), rand, init.getMembershipCapacity())
+				: new MembershipTable(selfAddress.getId(), rand);
 		this.self = new Peer(selfAddress, NodeState.ALIVE);
-		selfMember = new Member(self);
-		selfMember.setPingedTimes(Integer.MAX_VALUE);
 
 		// We add ourself and we spread us in the beginning.
-		members.add(selfMember);
+		members.put(self);
 
 		subscribe(handleStart, control);
 		subscribe(handleStop, control);
@@ -121,6 +137,7 @@ public class SwimComp extends ComponentDefinition {
 		subscribe(handleIndirectPing, network);
 		subscribe(handleIndirectPong, network);
 		subscribe(handleStopIndirectPing, network);
+		subscribe(handlePayload, network);
 
 		subscribe(handleNatRequest, nat);
 		subscribe(handleNatUpdate, nat);
@@ -135,12 +152,13 @@ public class SwimComp extends ComponentDefinition {
       // Every time it starts, the infection time is incremented so that 
       // when other peers get its info, they update their membership list.
 			self.setIncarnation(self.getIncarnation() + 1);
+			members.put(self);
 
 			if (!bootstrapNodes.isEmpty()) {
 
 				// Add bootstrap nodes to local membership list
 				for (NatedAddress node : bootstrapNodes) {
-					members.add(new Member(new Peer(node, NodeState.ALIVE)));
+					members.put(new Peer(node, NodeState.ALIVE));
 					log.debug("{} my bootstrap node: {}", selfAddress.getId(),
 							node);
 				}
@@ -173,8 +191,8 @@ public class SwimComp extends ComponentDefinition {
 		@Override
 		public void handle(NetPing event) {
 
-			if (isCausalOrNew(event.getSource().getId(), event.getContent()
-					.getCounter())) {
+			if (isCausalOrNew(sequenceNumbers, event.getSource()
+					.getId(), event.getContent())) {
 
 				log.debug("{} received PING from:{}, {}", new Object[] {
 						selfAddress.getId(), event.getHeader().getSource() });
@@ -184,19 +202,15 @@ public class SwimComp extends ComponentDefinition {
 				log.debug("{} Partial view received: {}", selfAddress.getId(),
 						event.getContent().getPiggyback());
 
-				// Create piggyback view. Sort local view with infection
-				// time - less infected first
-				Collections.sort(members, new MembersInfectionSortPolicy());
+				// Create piggyback view - less infected first. This also
+				// increments the infection time of the piggybacked node's
 				List<Peer> piggyback = PeerExchangeSelection.getPeers(members,
-						PIGGYBACK_SIZE, INFECT_FACTOR);
-
-				// Increments the infection time of the piggybacked node's
-				PeerExchangeSelection.updateInfectionTime(members, piggyback);
+						PIGGYBACK_SIZE, INFECT_FACTOR,
+						piggybackBudget(event.getSource()));
 
 				// Merge received view with the local
 				List<Peer> receivedView = event.getContent().getPiggyback();
-				members = PeerExchangeSelection.merge(self, members,
-						receivedView);
+				PeerExchangeSelection.merge(self, members, receivedView);
 
 				log.debug("{} Local membership list after PING merging: {}",
 						selfAddress.getId(), members);
@@ -209,7 +223,7 @@ public class SwimComp extends ComponentDefinition {
 				// Send PONG with changes - piggyback
 				trigger(new NetPong(selfAddress, event.getSource(), piggyback,
 						event.getContent().getPingTimeoutUUID(),
-						localSequenceNumber), network);
+						localSequenceNumber, epoch), network);
 			}
 		}
 	};
@@ -222,8 +236,8 @@ public class SwimComp extends ComponentDefinition {
 		@Override
 		public void handle(NetPong event) {
 
-			if (isCausalOrNew(event.getSource().getId(), event.getContent()
-					.getCounter())) {
+			if (isCausalOrNew(sequenceNumbers, event.getSource()
+					.getId(), event.getContent())) {
 				
 				log.debug("{} received PONG from: {} Partial view received {}",
 						new Object[] { selfAddress.getId(), event.getSource(),
@@ -234,8 +248,8 @@ public class SwimComp extends ComponentDefinition {
 				cancelPingTimeout(pingTimeoutID, event.getSource());
 
 				// Merge received view with local
-				members = PeerExchangeSelection.merge(self, members, event
-						.getContent().getView());
+				PeerExchangeSelection.merge(self, members, event.getContent()
+						.getView());
 
 				log.debug("{} Local after PONG MERGED membership list: {}",
 						selfAddress.getId(), members);
@@ -251,38 +265,30 @@ public class SwimComp extends ComponentDefinition {
 		@Override
 		public void handle(PingTimeout event) {
 
-			// Select possible PING recipients in round-robin fashion
-			// Select peers pinged less time
-			List<Member> selectables = PeerExchangeSelection
-					.getPingableTargets(self, members);
+			// Select PING recipient in randomized round-robin fashion
+			Peer pingPeer = PeerExchangeSelection.getPingTarget(members);
 
-			if (!selectables.isEmpty()) {
-				Member pingPeer = selectables.get(0);
+			if (pingPeer != null) {
 
 				// Schedule timeout for the Failure Detector
-				UUID pingTimeoutID = schedulePingTimeout(pingPeer.getPeer());
-
-				// Increment ping time
-				pingPeer.incrementPingedTimes();
+				UUID pingTimeoutID = schedulePingTimeout(pingPeer);
 
-				// Sort local view with infection time - less infected first
-				Collections.sort(members, new MembersInfectionSortPolicy());
-				// Get piggyback
+				// Get piggyback, less infected first. This also increments
+				// the infection time of the piggybacked node's
 				List<Peer> piggyback = PeerExchangeSelection.getPeers(members,
-						PIGGYBACK_SIZE, INFECT_FACTOR);
-
-				// Increments the infection time of the piggybacked node's
-				PeerExchangeSelection.updateInfectionTime(members, piggyback);
+						PIGGYBACK_SIZE, INFECT_FACTOR,
+						piggybackBudget(pingPeer.getNode()));
 
 				log.debug("{} sending PING to node: {}. View Sending: {}",
 						new Object[] { selfAddress.getId(),
-								pingPeer.getPeer().getNode(), piggyback });
+								pingPeer.getNode(), piggyback });
 
 				localSequenceNumber++;
 
 				// Send piggyback to recipient
-				trigger(new NetPing(selfAddress, pingPeer.getPeer().getNode(),
-						piggyback, pingTimeoutID, localSequenceNumber), network);
+				trigger(new NetPing(selfAddress, pingPeer.getNode(),
+						piggyback, pingTimeoutID, localSequenceNumber, epoch),
+						network);
 			}
 		}
 	};
@@ -299,28 +305,27 @@ public class SwimComp extends ComponentDefinition {
 					event.getPeer());
 
 			// Find the node that did not respond to our PING, in our local view
-			int index = members.indexOf(new Member(event.getPeer()));
+			Integer suspected = event.getPeer().getNode().getId();
 
-			if (index >= 0) {
+			if (members.contains(suspected)) {
 				// Set its state SUSPECTED
-				members.get(index).getPeer().setState(NodeState.SUSPECTED);
+				members.setState(suspected, NodeState.SUSPECTED);
 
 				// Random peer selection for indirect ping
-				List<Peer> randomPeers = PeerExchangeSelection
-						.getIndirectPingPeers(members, INDIRECT_PING_SIZE,
-								rand, self);
+				PeerExchangeSelection.getIndirectPingPeers(members,
+						INDIRECT_PING_SIZE, rand, indirectPingPeers);
 
-				if (randomPeers.size() > 0) {
+				if (indirectPingPeers.size() > 0) {
 					// Set new timeout. After this period the node is declared DEAD
 					UUID uuid = scheduleDeadTimeout(event.getPeer());
 
 					localSequenceNumber++;
 
 					// Send indirect ping to recipients
-					randomPeers.forEach(x -> {
+					indirectPingPeers.forEach(x -> {
 						trigger(new NetStartIndirectPing(selfAddress, x.getNode(),
 								new StartIndirectPing(self, event.getPeer(), uuid,
-										localSequenceNumber)), network);
+										localSequenceNumber, epoch)), network);
 					});
 				}
 			}
@@ -338,8 +343,8 @@ public class SwimComp extends ComponentDefinition {
 		@Override
 		public void handle(NetStartIndirectPing event) {
 
-			if (isCausalOrNew(event.getSource().getId(), event.getContent()
-					.getCounter())) {
+			if (isCausalOrNew(sequenceNumbers, event.getSource()
+					.getId(), event.getContent())) {
 				log.debug("Node {} received NetStartIndirectPing for suspected {}",
 						selfAddress.getId(), event.getContent().getSuspectedPeer());
 
@@ -350,7 +355,8 @@ public class SwimComp extends ComponentDefinition {
 				trigger(new NetIndirectPing(selfAddress, event.getContent()
 						.getSuspectedPeer().getNode(), new IndirectPing(event
 						.getContent().getInitiatorPeer(), event.getContent()
-						.getDeadPingTimeout(), localSequenceNumber)), network);
+						.getDeadPingTimeout(), localSequenceNumber, epoch)),
+						network);
 			}
 		}
 	};
@@ -362,15 +368,15 @@ public class SwimComp extends ComponentDefinition {
 
 		@Override
 		public void handle(NetIndirectPing event) {
-			if (isCausalOrNew(event.getSource().getId(), event.getContent()
-					.getCounter())) {
+			if (isCausalOrNew(sequenceNumbers, event.getSource()
+					.getId(), event.getContent())) {
 				localSequenceNumber++;
 
 				// Send back indirect pong to indirect pinger
 				trigger(new NetIndirectPong(selfAddress, event.getSource(),
 						new IndirectPong(event.getContent().getIndirectPingRequester(),
 								self, event.getContent().getDeadPingTimeout(),
-								localSequenceNumber)), network);
+								localSequenceNumber, epoch)), network);
 			}
 		}
 	};
@@ -382,8 +388,8 @@ public class SwimComp extends ComponentDefinition {
 
 		@Override
 		public void handle(NetIndirectPong event) {
-			if (isCausalOrNew(event.getSource().getId(), event.getContent()
-					.getCounter())) {
+			if (isCausalOrNew(sequenceNumbers, event.getSource()
+					.getId(), event.getContent())) {
 
 				localSequenceNumber++;
 
@@ -392,7 +398,7 @@ public class SwimComp extends ComponentDefinition {
 						.getInitiatorPeer().getNode(), new StopIndirectPing(
 								event.getContent().getSuspectedPeer(),
 								event.getContent().getDeadTImeout(),
-						localSequenceNumber)), network);
+						localSequenceNumber, epoch)), network);
 			}
 		}
 	};
@@ -406,22 +412,21 @@ public class SwimComp extends ComponentDefinition {
 		@Override
 		public void handle(NetStopIndirectPing event) {
 
-			if (isCausalOrNew(event.getSource().getId(), event.getContent()
-					.getCounter())) {
+			if (isCausalOrNew(sequenceNumbers, event.getSource()
+					.getId(), event.getContent())) {
 				log.debug("Node {} received STOP INDIRECT PING for node {}",
 						new Object[] { selfAddress.getId(),
 								event.getContent().getSuspectedPeer() });
 				
 				// Find that node in our view
-				Optional<Member> tmpPeer = members.stream()
-						.filter(x -> x.getPeer().equals(event.getContent().getSuspectedPeer()))
-						.findFirst();
+				Integer tmpPeer = event.getContent().getSuspectedPeer()
+						.getNode().getId();
 
-				if (tmpPeer.isPresent()) {
+				if (members.contains(tmpPeer)) {
 					// Change node status from SUSPECTED to ALIVE
 					// Reset infection time to spread the change
-					tmpPeer.get().getPeer().setState(NodeState.ALIVE);
-					tmpPeer.get().resetInfectionTime();
+					members.setState(tmpPeer, NodeState.ALIVE);
+					members.resetInfectionTime(tmpPeer);
 				}
 
 				// Cancel the timeout that would declare that node DEAD
@@ -431,6 +436,38 @@ public class SwimComp extends ComponentDefinition {
 		}
 	};
 
+	/**
+	 * Message relayed as an encoded payload. Decode it and handle it as if
+	 * it was received as it is. Piggybacked entries sent without address are
+	 * resolved with our view
+	 */
+	private final Handler<NetPayload> handlePayload = new Handler<NetPayload>() {
+
+		@Override
+		public void handle(NetPayload event) {
+			NetMsg<?> msg = SwimCodec.fromPayload(event.getHeader(),
+					event.getContent(), id -> members.contains(id) ? members
+							.getPeer(id).getNode() : null);
+
+			if (msg instanceof NetPing) {
+				handlePing.handle((NetPing) msg);
+			} else if (msg instanceof NetPong) {
+				handlePong.handle((NetPong) msg);
+			} else if (msg instanceof NetStartIndirectPing) {
+				handleStartIndirectPing.handle((NetStartIndirectPing) msg);
+			} else if (msg instanceof NetIndirectPing) {
+				handleIndirectPing.handle((NetIndirectPing) msg);
+			} else if (msg instanceof NetIndirectPong) {
+				handleIndirectPong.handle((NetIndirectPong) msg);
+			} else if (msg instanceof NetStopIndirectPing) {
+				handleStopIndirectPing.handle((NetStopIndirectPing) msg);
+			} else {
+				log.debug("{} dropping relayed msg:{}", selfAddress.getId(),
+						msg);
+			}
+		}
+	};
+
 	/**
 	 * When a node is suspected and did not receive an indirect pong,
 	 * declare that node DEAD
@@ -443,13 +480,13 @@ public class SwimComp extends ComponentDefinition {
 					new Object[] { selfAddress.getId(), event.getTimeoutId() });
 
 			// Find that node in our view
-			Member dead = members.stream()
-					.filter(x -> x.getPeer().equals(event.getDeadPeer()))
-					.findFirst().get();
+			Integer dead = event.getDeadPeer().getNode().getId();
 
-			// Change its status to DEAD and reset infection time
-			dead.getPeer().setState(NodeState.DEAD);
-			dead.resetInfectionTime();
+			if (members.contains(dead)) {
+				// Change its status to DEAD and reset infection time
+				members.setState(dead, NodeState.DEAD);
+				members.resetInfectionTime(dead);
+			}
 		}
 	};
 
@@ -463,20 +500,13 @@ public class SwimComp extends ComponentDefinition {
 					selfAddress.getId(), aggregatorAddress });
 
       // Returns the number of all the alive nodes of the membership list.
-			int alive = (int) members
-					.stream()
-					.filter(x -> x.getPeer().getState().equals(NodeState.ALIVE))
-					.count();
+			int alive = members.count(NodeState.ALIVE);
 
       // Returns the number of all the dead nodes of the membership list.
-			int dead = (int) members.stream()
-					.filter(x -> x.getPeer().getState().equals(NodeState.DEAD))
-					.count();
+			int dead = members.count(NodeState.DEAD);
 			
       // Returns the number of all the suspected nodes of the membership list.
-			int suspected = (int) members.stream()
-					.filter(x -> x.getPeer().getState().equals(NodeState.SUSPECTED))
-					.count();
+			int suspected = members.count(NodeState.SUSPECTED);
 
       // Send the message with the updated status to the aggregator component
 			trigger(new NetStatus(selfAddress, aggregatorAddress, new Status(
@@ -492,15 +522,9 @@ public class SwimComp extends ComponentDefinition {
 		@Override
 		public void handle(NatRequest event) {
 			
-			// Find IDs of alive nodes
-			List<Integer> alives = members.stream()
-					.filter(x -> x.getPeer().getState().equals(NodeState.ALIVE))
-					.map(x -> x.getPeer().getNode().getId())
-					.collect(Collectors.toList());
-
 			// Respond with the alive subset of the sample received
 			List<NatedAddress> ret = event.getParents().stream()
-					.filter(x -> alives.contains(x.getId()))
+					.filter(x -> NodeState.ALIVE.equals(members.getState(x.getId())))
 					.collect(Collectors.toList());
 
 			StringBuilder sb = new StringBuilder();
@@ -523,33 +547,51 @@ public class SwimComp extends ComponentDefinition {
 	private final Handler<NatUpdate> handleNatUpdate = new Handler<NatUpdate>() {
 		@Override
 		public void handle(NatUpdate event) {
-			// Store old incarnation number and remove ourself from the local view
-			Integer oldIncarnation = selfMember.getPeer().getIncarnation();
-			members.remove(selfMember);
+			if (!event.isAnnounce()) {
+				// Only parents peers never heard of changed, the announced
+				// ones still relay for us. Use the new address in our
+				// messages and let it spread with the next announced change
+				// or refutation
+				selfAddress = event.getNewNatedAddress();
+				self = new Peer(selfAddress, NodeState.ALIVE,
+						self.getIncarnation());
+				return;
+			}
+
+			// Store old incarnation number, our entry is replaced below
+			Integer oldIncarnation = self.getIncarnation();
 
 			// Make a new self reference
 			selfAddress = event.getNewNatedAddress();
-			self = new Peer(selfAddress, NodeState.ALIVE);
-			selfMember = new Member(self);
-			selfMember.getPeer().setIncarnation(oldIncarnation + 1);
-			selfMember.setPingedTimes(Integer.MAX_VALUE);
+			self = new Peer(selfAddress, NodeState.ALIVE, oldIncarnation + 1);
 
 			// Add it to the local view and it will be spread to the overlay
-			members.add(selfMember);
+			members.put(self);
 		}
 	};
 
 	/**
-	 * Execute only if the source is a new node or if the sequence number of
-	 * the message is larger than the last we have seen for that node
+	 * Budget of the piggyback of a PING or PONG to the destination, so that
+	 * the message fits in one datagram
+	 * @return The budget or null if the piggyback is bounded by size only
 	 */
-	private boolean isCausalOrNew(Integer peerId, Integer peerCounter) {
-		Optional<Member> tmpPeer = members.stream()
-				.filter(x -> x.getPeer().getNode().getId().equals(peerId))
-				.findFirst();
+	private PiggybackBudget piggybackBudget(NatedAddress destination) {
+		if (DATAGRAM_BYTES <= 0) {
+			return null;
+		}
+		return new PiggybackBudget(SwimCodec.piggybackBudget(DATAGRAM_BYTES,
+				selfAddress, destination));
+	}
 
-		return !tmpPeer.isPresent()
-				|| (tmpPeer.isPresent() && tmpPeer.get().isCausal(peerCounter));
+	/**
+	 * Execute only if the source is a new node, restarted with a new epoch
+	 * or if we have not seen the sequence number of the message from that
+	 * node yet. Incarnations play no part, a refutation does not make us
+	 * accept a duplicate again
+	 */
+	static boolean isCausalOrNew(SequenceTable seen, int peerId,
+			MessageCounter msg) {
+		return seen.accept(peerId, msg.getEpoch(), msg.getCounter());
 	}
 
 	/**
@@ -654,17 +696,23 @@ public class SwimComp extends ComponentDefinition {
 		public final Set<NatedAddress> bootstrapNodes;
 		public final NatedAddress aggregatorAddress;
 		private final long seed;
-		private final Integer infectionTime, piggybackSize;
+		private final SwimConfig config;
 
 		public SwimInit(NatedAddress selfAddress,
 				Set<NatedAddress> bootstrapNodes,
 				NatedAddress aggregatorAddress, long seed, Integer infectionTime, Integer piggybackSize) {
+			this(selfAddress, bootstrapNodes, aggregatorAddress, seed,
+					new SwimConfig(infectionTime, piggybackSize));
+		}
+
+		public SwimInit(NatedAddress selfAddress,
+				Set<NatedAddress> bootstrapNodes,
+				NatedAddress aggregatorAddress, long seed, SwimConfig config) {
 			this.selfAddress = selfAddress;
 			this.bootstrapNodes = bootstrapNodes;
 			this.aggregatorAddress = aggregatorAddress;
 			this.seed = seed;
-			this.infectionTime = infectionTime;
-			this.piggybackSize = piggybackSize;
+			this.config = config;
 		}
 
 		public long getSeed() {
@@ -672,11 +720,23 @@ public class SwimComp extends ComponentDefinition {
 		}
 		
 		public Integer getInfectionTime() {
-			return infectionTime;
+			return config.infectionTime;
 		}
 		
 		public Integer getPiggybackSize() {
-			return piggybackSize;
+			return config.piggybackSize;
+		}
+
+		public boolean isPrimitiveMembership() {
+			return config.primitiveMembership;
+		}
+
+		public int getMembershipCapacity() {
+			return config.membershipCapacity;
+		}
+
+		public int getDatagramBytes() {
+			return config.datagramBytes;
 		}
 	}
 
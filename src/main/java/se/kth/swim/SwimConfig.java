@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * GVoD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.swim;
+
+/**
+ * Configuration of the SWIM membership protocol. The optional settings are
+ * off by default and turned on with the copying with* methods.
+ */
+public class SwimConfig {
+
+	public final Integer infectionTime;
+	public final Integer piggybackSize;
+	public final boolean primitiveMembership;
+	public final int membershipCapacity;
+	public final int datagramBytes;
+
+	public SwimConfig(Integer infectionTime, Integer piggybackSize) {
+		this(infectionTime, piggybackSize, false, 0, 0);
+	}
+
+	private SwimConfig(Integer infectionTime, Integer piggybackSize,
+			boolean primitiveMembership, int membershipCapacity,
+			int datagramBytes) {
+		this.infectionTime = infectionTime;
+		this.piggybackSize = piggybackSize;
+		this.primitiveMembership = primitiveMembership;
+		this.membershipCapacity = membershipCapacity;
+		this.datagramBytes = datagramBytes;
+	}
+
+	/**
+	 * Keep the membership list in a {@link PrimitiveMembershipTable} instead
+	 * of a {@link MembershipTable}, for very large views.
+	 * 
+	 * @param membershipCapacity
+	 *            Expected size of the view.
+	 */
+	public SwimConfig withPrimitiveMembership(int membershipCapacity) {
+		return new SwimConfig(infectionTime, piggybackSize, true,
+				membershipCapacity, datagramBytes);
+	}
+
+	/**
+	 * @param datagramBytes
+	 *            Maximum encoded size of a PING or PONG, the piggyback is cut
+	 *            to fit. 0 to bound it by piggybackSize only.
+	 */
+	public SwimConfig withDatagramBytes(int datagramBytes) {
+		return new SwimConfig(infectionTime, piggybackSize,
+				primitiveMembership, membershipCapacity, datagramBytes);
+	}
+}
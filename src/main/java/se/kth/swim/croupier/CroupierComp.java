@@ -94,8 +94,8 @@ public class CroupierComp extends ComponentDefinition {
         this.shuffleTimeoutId = null;
 
         Random rand = new Random(init.seed + overlayId);
-        this.publicView = new CroupierView((BasicAddress) self.getBaseAdr(), croupierConfig.viewSize, rand);
-        this.privateView = new CroupierView((BasicAddress) self.getBaseAdr(), croupierConfig.viewSize, rand);
+        this.publicView = new CroupierView((BasicAddress) self.getBaseAdr(), croupierConfig.viewSize, croupierConfig.healerSize, rand);
+        this.privateView = new CroupierView((BasicAddress) self.getBaseAdr(), croupierConfig.viewSize, croupierConfig.healerSize, rand);
 
         subscribe(handleStart, control);
         subscribe(handleStop, control);
@@ -203,9 +203,9 @@ public class CroupierComp extends ComponentDefinition {
         }
         NatedAddress node = null;
         if (!publicView.isEmpty()) {
-            node = publicView.selectPeerToShuffleWith(croupierConfig.policy, true, temperature);
+            node = publicView.selectPeerToShuffleWith(croupierConfig.policy, temperature > 0, temperature);
         } else if (!privateView.isEmpty()) {
-            node = privateView.selectPeerToShuffleWith(croupierConfig.policy, true, temperature);
+            node = privateView.selectPeerToShuffleWith(croupierConfig.policy, temperature > 0, temperature);
         }
         return node;
     }
@@ -223,7 +223,8 @@ public class CroupierComp extends ComponentDefinition {
             }
 
             if (!publicView.isEmpty() || !privateView.isEmpty()) {
-                CroupierSample cs = new CroupierSample(overlayId, publicView.getAllCopy(), privateView.getAllCopy());
+                CroupierSample cs = new CroupierSample(overlayId, publicView.getSnapshot(), privateView.getSnapshot(),
+                        publicView.getVersion(), privateView.getVersion());
                 log.info("{} publishing sample \n public nodes:{} \n private nodes:{}", new Object[]{logPrefix, cs.publicSample, cs.privateSample});
                 trigger(cs, croupierPort);
             }
@@ -235,15 +236,16 @@ public class CroupierComp extends ComponentDefinition {
             }
 
             if (!peer.isOpen()) {
-                log.debug("{} did not pick a public node for shuffling - public view size:{}", new Object[]{logPrefix, publicView.getAllCopy().size()});
+                log.debug("{} did not pick a public node for shuffling - public view size:{}", new Object[]{logPrefix, publicView.size()});
             }
 
             // NOTE:
             publicView.incrementDescriptorAges();
             privateView.incrementDescriptorAges();
 
-            Set<CroupierContainer> publicDescCopy = publicView.initiatorCopySet(croupierConfig.shuffleSize, peer);
-            Set<CroupierContainer> privateDescCopy = privateView.initiatorCopySet(croupierConfig.shuffleSize, peer);
+            UUID shuffleId = UUID.randomUUID();
+            Set<CroupierContainer> publicDescCopy = publicView.initiatorCopySet(croupierConfig.shuffleSize, peer, shuffleId);
+            Set<CroupierContainer> privateDescCopy = privateView.initiatorCopySet(croupierConfig.shuffleSize, peer, shuffleId);
 
             if (self.isOpen()) {
                 publicDescCopy.add(new CroupierContainer(self, selfView));
@@ -252,7 +254,7 @@ public class CroupierComp extends ComponentDefinition {
             }
 
             OverlayHeaderImpl<NatedAddress> requestHeader = new OverlayHeaderImpl(new BasicHeader(self, peer, Transport.UDP), overlayId);
-            CroupierShuffle.Request requestContent = new CroupierShuffle.Request(UUID.randomUUID(), publicDescCopy, privateDescCopy);
+            CroupierShuffle.Request requestContent = new CroupierShuffle.Request(shuffleId, publicDescCopy, privateDescCopy);
             CroupierShuffleNet.Request request = new CroupierShuffleNet.Request(requestHeader, requestContent);
             log.trace("{} sending:{} to:{}", new Object[]{logPrefix, requestContent, peer});
             trigger(request, network);
@@ -287,8 +289,9 @@ public class CroupierComp extends ComponentDefinition {
             publicView.incrementDescriptorAges();
             privateView.incrementDescriptorAges();
 
-            Set<CroupierContainer> publicDescCopy = publicView.receiverCopySet(croupierConfig.shuffleSize, reqSrc);
-            Set<CroupierContainer> privateDescCopy = privateView.receiverCopySet(croupierConfig.shuffleSize, reqSrc);
+            UUID shuffleId = request.getContent().getId();
+            Set<CroupierContainer> publicDescCopy = publicView.receiverCopySet(croupierConfig.shuffleSize, reqSrc, shuffleId);
+            Set<CroupierContainer> privateDescCopy = privateView.receiverCopySet(croupierConfig.shuffleSize, reqSrc, shuffleId);
             if (self.isOpen()) {
                 publicDescCopy.add(new CroupierContainer(self, selfView));
             } else {
@@ -296,14 +299,14 @@ public class CroupierComp extends ComponentDefinition {
             }
 
             OverlayHeaderImpl<NatedAddress> responseHeader = new OverlayHeaderImpl(new BasicHeader(self, reqSrc, Transport.UDP), overlayId);
-            CroupierShuffle.Response responseContent = new CroupierShuffle.Response(request.getContent().getId(), publicDescCopy, privateDescCopy);
+            CroupierShuffle.Response responseContent = new CroupierShuffle.Response(shuffleId, publicDescCopy, privateDescCopy);
             CroupierShuffleNet.Response response = new CroupierShuffleNet.Response(responseHeader, responseContent);
 
             log.trace("{} sending:{} to:{}", new Object[]{logPrefix, responseContent, reqSrc});
             trigger(response, network);
 
-            publicView.selectToKeep(reqSrc, request.getContent().publicNodes);
-            privateView.selectToKeep(reqSrc, request.getContent().privateNodes);
+            publicView.selectToKeep(reqSrc, shuffleId, request.getContent().publicNodes);
+            privateView.selectToKeep(reqSrc, shuffleId, request.getContent().privateNodes);
             if (!connected() && haveShufflePartners()) {
                 startShuffle();
             }
@@ -331,8 +334,8 @@ public class CroupierComp extends ComponentDefinition {
                         return;
                     }
 
-                    publicView.selectToKeep(respSrc, response.getContent().publicNodes);
-                    privateView.selectToKeep(respSrc, response.getContent().privateNodes);
+                    publicView.selectToKeep(respSrc, response.getContent().getId(), response.getContent().publicNodes);
+                    privateView.selectToKeep(respSrc, response.getContent().getId(), response.getContent().privateNodes);
                     cancelShuffleTimeout();
                 }
             };
@@ -34,13 +34,29 @@ public class CroupierConfig {
     public final long shufflePeriod;
     public final long shuffleTimeout;
     public final double softMaxTemperature;
+    /**
+     * oldest descriptors a HEALER merge replaces first, half the shuffle,
+     * 0 for the other policies
+     */
+    public final int healerSize;
 
     public CroupierConfig(int viewSize, int shuffleSize, long shufflePeriod, long shuffleTimeout) {
-        this.policy = CroupierSelectionPolicy.RANDOM;
+        this(viewSize, shuffleSize, shufflePeriod, shuffleTimeout, CroupierSelectionPolicy.RANDOM, 0);
+    }
+
+    /**
+     * @param softMaxTemperature above 0 the TAIL and HEALER policies pick
+     * older peers with higher probability instead of always the oldest one,
+     * lower temperatures are closer to always the oldest
+     */
+    public CroupierConfig(int viewSize, int shuffleSize, long shufflePeriod, long shuffleTimeout,
+            CroupierSelectionPolicy policy, double softMaxTemperature) {
+        this.policy = policy;
         this.viewSize = viewSize;
         this.shuffleSize = shuffleSize;
         this.shufflePeriod = shufflePeriod;
         this.shuffleTimeout = shuffleTimeout;
-        this.softMaxTemperature = 0;
+        this.softMaxTemperature = softMaxTemperature;
+        this.healerSize = policy == CroupierSelectionPolicy.HEALER ? shuffleSize / 2 : 0;
     }
 }
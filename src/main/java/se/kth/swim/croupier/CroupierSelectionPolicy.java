@@ -23,11 +23,28 @@ package se.kth.swim.croupier;
  */
 public enum CroupierSelectionPolicy {
 
-    RANDOM;
+    /**
+     * shuffle with a uniformly random peer of the view, its descriptor is
+     * kept
+     */
+    RANDOM,
+    /**
+     * shuffle with the peer of the oldest descriptor, and drop that
+     * descriptor when the view is full as Cyclon does. A live peer is added
+     * back with the fresh descriptor of its response.
+     */
+    TAIL,
+    /**
+     * as TAIL, and on merge replace the oldest descriptors of the view
+     * before those sent in the exchange, see CroupierConfig.healerSize
+     */
+    HEALER;
 
     public static CroupierSelectionPolicy create(String policy) {
-        if (policy.compareToIgnoreCase(CroupierSelectionPolicy.RANDOM.name()) == 0) {
-            return RANDOM;
+        for (CroupierSelectionPolicy p : values()) {
+            if (policy.compareToIgnoreCase(p.name()) == 0) {
+                return p;
+            }
         }
         return null;
     }
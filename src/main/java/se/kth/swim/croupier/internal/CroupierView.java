@@ -21,13 +21,20 @@
 package se.kth.swim.croupier.internal;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
 import se.kth.swim.croupier.CroupierSelectionPolicy;
 import se.sics.p2ptoolbox.util.network.NatedAddress;
 import se.sics.p2ptoolbox.util.network.impl.BasicAddress;
@@ -37,121 +44,159 @@ import se.sics.p2ptoolbox.util.network.impl.BasicAddress;
  */
 public class CroupierView<C extends Object> {
 
+    private static final int MAX_OPEN_SHUFFLES = 16;
+
     private final int viewSize;
+    // oldest entries the merge gives up first when the view is full
+    private final int healerSize;
     private final BasicAddress selfAddress;
-    private final HashMap<BasicAddress, CroupierViewEntry<C>> d2e;
+    // entries are kept dense in [0, size), d2s gives the slot of each peer
+    private CroupierViewEntry<C>[] entries;
+    private int size;
+    // ageing happens lazily, entry ages are derived from the epoch
+    private int epoch;
+    private final HashMap<BasicAddress, Integer> d2s;
     private final Random rand;
+    // entries sent in each shuffle exchange still waiting for its selectToKeep
+    private final Map<UUID, List<CroupierViewEntry>> sentInShuffle;
+    // the same entries ordered by age, the oldest is last
+    private final TreeSet<CroupierViewEntry> byAge;
+    // bumped on every change of the entries, the snapshot is rebuilt lazily
+    private long version;
+    private Set<CroupierContainer<C>> snapshot;
+    private long snapshotVersion;
 
     private Comparator<CroupierViewEntry> comparatorByAge = new Comparator<CroupierViewEntry>() {
         
         public int compare(CroupierViewEntry o1, CroupierViewEntry o2) {
-            if (o1.getDescriptor().getAge() > o2.getDescriptor().getAge()) {
+            if (o1.getAge(epoch) > o2.getAge(epoch)) {
                 return 1;
-            } else if (o1.getDescriptor().getAge() < o2.getDescriptor().getAge()) {
+            } else if (o1.getAge(epoch) < o2.getAge(epoch)) {
                 return -1;
             } else {
-                return 0;
+                // a total order, the entries are kept in a sorted set
+                return Integer.compare(o1.getDescriptor().getSource().getId(), o2.getDescriptor().getSource().getId());
             }
         }
     };
 
     public CroupierView(BasicAddress selfAddress, int viewSize, Random rand) {
+        this(selfAddress, viewSize, 0, rand);
+    }
+
+    /**
+     * @param healerSize number of the oldest entries selectToKeep replaces
+     * before the entries sent in the exchange, 0 for none
+     */
+    public CroupierView(BasicAddress selfAddress, int viewSize, int healerSize, Random rand) {
         super();
         this.selfAddress = selfAddress;
         this.viewSize = viewSize;
-        this.d2e = new HashMap<BasicAddress, CroupierViewEntry<C>>();
+        this.healerSize = healerSize;
+        this.entries = new CroupierViewEntry[Math.max(viewSize, 1)];
+        this.size = 0;
+        this.epoch = 0;
+        this.d2s = new HashMap<BasicAddress, Integer>();
         this.rand = rand;
+        this.sentInShuffle = new LinkedHashMap<UUID, List<CroupierViewEntry>>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, List<CroupierViewEntry>> eldest) {
+                // exchanges that timed out
+                return size() > MAX_OPEN_SHUFFLES;
+            }
+        };
+        this.byAge = new TreeSet<CroupierViewEntry>(comparatorByAge);
+        this.version = 0;
+        this.snapshot = null;
+        this.snapshotVersion = -1;
     }
 
     public void incrementDescriptorAges() {
-        for (CroupierViewEntry entry : d2e.values()) {
-            entry.getDescriptor().incrementAge();
-        }
+        epoch++;
     }
 
     public NatedAddress selectPeerToShuffleWith(CroupierSelectionPolicy policy,
             boolean softmax, double temperature) {
-        if (d2e.isEmpty()) {
+        if (size == 0) {
             return null;
         }
 
-        CroupierViewEntry selectedEntry = null;
-
-        selectedEntry = generateRandomSample(1).get(0);
-//        if (!softmax || policy == CroupierSelectionPolicy.RANDOM) {
-//            if (policy == CroupierSelectionPolicy.TAIL) {
-//                selectedEntry = Collections.max(d2e.values(), comparatorByAge);
-//            } else if (policy == CroupierSelectionPolicy.HEALER) {
-//                selectedEntry = Collections.max(d2e.values(), comparatorByAge);
-//            } else if (policy == CroupierSelectionPolicy.RANDOM) {
-//                selectedEntry = generateRandomSample(1).get(0);
-//            } else {
-//                throw new IllegalArgumentException("Invalid Croupier policy selected:" + policy);
-//            }
-//
-//        } else {
-//            ArrayList<CroupierViewEntry> entries = new ArrayList<CroupierViewEntry>(d2e.values());
-//            if (policy == CroupierSelectionPolicy.TAIL) {
-//                Collections.sort(entries, comparatorByAge);
-//            } else if (policy == CroupierSelectionPolicy.HEALER) {
-//                Collections.sort(entries, comparatorByAge);
-//            } else {
-//                throw new IllegalArgumentException("Invalid Croupier policy selected:" + policy);
-//            }
-//
-//            int index = softMaxIndex(entries, temperature);
-//            if (index == -1) {
-//                selectedEntry = entries.get(entries.size() - 1);
-//            } else {
-//                selectedEntry = entries.get(index);
-//            }
-//        }
-//
-//        // TODO - by not removing a reference to the node I am shuffling with, we
-//        // break the 'batched random walk' (Cyclon) behaviour. But it's more important
-//        // to keep the graph connected.
-//        if (d2e.size() >= viewSize) {
-//            removeEntry(selectedEntry.getDescriptor().getSource().getBase());
-//        }
+        CroupierViewEntry selectedEntry;
+        if (policy == CroupierSelectionPolicy.RANDOM) {
+            selectedEntry = generateRandomSample(1).get(0);
+        } else if (policy == CroupierSelectionPolicy.TAIL || policy == CroupierSelectionPolicy.HEALER) {
+            if (!softmax) {
+                selectedEntry = byAge.last();
+            } else {
+                // oldest first, the softmax favours the head of the set
+                selectedEntry = softMaxEntry(byAge.descendingSet(), temperature);
+            }
+        } else {
+            throw new IllegalArgumentException("Invalid Croupier policy selected:" + policy);
+        }
+
+        // TAIL and HEALER drop the descriptor of the peer they shuffle with,
+        // as in Cyclon. A live peer comes back with a fresh descriptor in its
+        // response, a dead one is gone without waiting for the timeout.
+        // RANDOM keeps it, the peer may be picked again at any time.
+        if (policy != CroupierSelectionPolicy.RANDOM && size >= viewSize) {
+            removeEntry((BasicAddress)selectedEntry.getDescriptor().getSource().getBaseAdr());
+        }
 
         return selectedEntry.getDescriptor().getSource();
     }
 
-    public Set<CroupierContainer<C>> initiatorCopySet(int count, NatedAddress destinationPeer) {
-        List<CroupierViewEntry> randomEntries = generateRandomSample(count);
-        Set<CroupierContainer<C>> descriptors = new HashSet<CroupierContainer<C>>();
-        for (CroupierViewEntry cacheEntry : randomEntries) {
-            cacheEntry.sentTo((BasicAddress)destinationPeer.getBaseAdr());
-            descriptors.add(cacheEntry.getDescriptor().getCopy());
-        }
-        return descriptors;
+    public Set<CroupierContainer<C>> initiatorCopySet(int count, NatedAddress destinationPeer, UUID shuffleId) {
+        return copySet(count, shuffleId);
+    }
+
+    public Set<CroupierContainer<C>> receiverCopySet(int count, NatedAddress destinationPeer, UUID shuffleId) {
+        return copySet(count, shuffleId);
     }
 
-    public Set<CroupierContainer<C>> receiverCopySet(int count, NatedAddress destinationPeer) {
+    private Set<CroupierContainer<C>> copySet(int count, UUID shuffleId) {
         List<CroupierViewEntry> randomEntries = generateRandomSample(count);
         Set<CroupierContainer<C>> descriptors = new HashSet<CroupierContainer<C>>();
         for (CroupierViewEntry cacheEntry : randomEntries) {
-            cacheEntry.sentTo((BasicAddress)destinationPeer.getBaseAdr());
-            descriptors.add(cacheEntry.getDescriptor().getCopy());
+            cacheEntry.sent();
+            descriptors.add(cacheEntry.getCopy(epoch));
         }
+        sentInShuffle.put(shuffleId, randomEntries);
         return descriptors;
     }
 
-    public void selectToKeep(NatedAddress from, Set<CroupierContainer<C>> descriptors) {
+    /**
+     * @param shuffleId exchange the descriptors came with, the slots to
+     * replace are those we sent in the same exchange
+     */
+    public void selectToKeep(NatedAddress from, UUID shuffleId, Set<CroupierContainer<C>> descriptors) {
+        List<CroupierViewEntry> sent = sentInShuffle.remove(shuffleId);
         BasicAddress baseFrom = (BasicAddress)from.getBaseAdr();
         if (baseFrom.equals(selfAddress)) {
             return;
         }
 
         LinkedList<CroupierViewEntry> entriesSentToThisPeer = new LinkedList<CroupierViewEntry>();
-        for (CroupierViewEntry cacheEntry : d2e.values()) {
-            if (cacheEntry.wasSentTo(baseFrom)) {
-                entriesSentToThisPeer.add(cacheEntry);
+        // healer, the oldest entries go first
+        Iterator<CroupierViewEntry> oldest = byAge.descendingIterator();
+        int healed = 0;
+        while (healed < healerSize && oldest.hasNext()) {
+            entriesSentToThisPeer.add(oldest.next());
+            healed++;
+        }
+        if (sent != null) {
+            for (CroupierViewEntry sentEntry : sent) {
+                // skip the entries replaced since we sent them
+                if (getEntry((BasicAddress)sentEntry.getDescriptor().getSource().getBaseAdr()) == sentEntry
+                        && !entriesSentToThisPeer.contains(sentEntry)) {
+                    entriesSentToThisPeer.add(sentEntry);
+                }
             }
         }
         //TODO Alex policy for removing the descriptor of the shuffle target - should it be the first i remove or last?
-        if (d2e.containsKey(baseFrom)) {
-            entriesSentToThisPeer.add(d2e.get(baseFrom));
+        CroupierViewEntry fromEntry = getEntry(baseFrom);
+        if (fromEntry != null && !entriesSentToThisPeer.contains(fromEntry)) {
+            entriesSentToThisPeer.add(fromEntry);
         }
 
         for (CroupierContainer<C> descriptor : descriptors) {
@@ -159,32 +204,36 @@ public class CroupierView<C extends Object> {
             if (selfAddress.equals(baseSrc)) {
                 continue; // do not keep descriptor of self
             }
-            if (d2e.containsKey(baseSrc)) {
+            CroupierViewEntry entry = getEntry(baseSrc);
+            if (entry != null) {
                 // we already have an entry for this peer. keep the youngest one
 
-                CroupierViewEntry entry = d2e.get(baseSrc);
-                if (entry.getDescriptor().getAge() > descriptor.getAge()) {
+                if (entry.getAge(epoch) > descriptor.getAge()) {
                     // we keep the lowest age descriptor
-                    CroupierViewEntry newCVE = new CroupierViewEntry(descriptor);
+                    CroupierViewEntry newCVE = new CroupierViewEntry(descriptor, epoch);
 
                     //TODO Alex what is the policy about descriptors I sent and received from src
                     int index = entriesSentToThisPeer.indexOf(entry);
-                    if (index != -1) {
+                    if (index != -1 && index < healed) {
+                        // no longer among the oldest
+                        entriesSentToThisPeer.remove(index);
+                        healed--;
+                    } else if (index != -1) {
                         entriesSentToThisPeer.set(index, newCVE);
                     }
 
                     removeEntry(baseSrc);
                     addEntry(newCVE);
                 }
-            } else if (d2e.size() < viewSize) {
+            } else if (size < viewSize) {
                 // fill an empty slot
-                addEntry(new CroupierViewEntry(descriptor));
+                addEntry(new CroupierViewEntry(descriptor, epoch));
             } else {
                 // replace one slot out of those sent to this peer
                 CroupierViewEntry sentEntry = entriesSentToThisPeer.poll();
                 if (sentEntry != null) {
                     removeEntry((BasicAddress)sentEntry.getDescriptor().getSource().getBaseAdr());
-                    addEntry(new CroupierViewEntry(descriptor));
+                    addEntry(new CroupierViewEntry(descriptor, epoch));
                 }
             }
         }
@@ -193,41 +242,101 @@ public class CroupierView<C extends Object> {
 //-------------------------------------------------------------------	
     public final Set<CroupierContainer<C>> getAllCopy() {
         Set<CroupierContainer<C>> descriptors = new HashSet<CroupierContainer<C>>();
-        for (CroupierViewEntry cacheEntry : d2e.values()) {
-            descriptors.add(cacheEntry.getDescriptor().getCopy());
+        for (int i = 0; i < size; i++) {
+            descriptors.add(entries[i].getCopy(epoch));
         }
         return descriptors;
     }
 
+    /**
+     * Immutable copy of the view, shared until the entries change. Ageing
+     * alone does not change the view, the ages are those of the last change.
+     */
+    public Set<CroupierContainer<C>> getSnapshot() {
+        if (snapshotVersion != version) {
+            snapshot = Collections.unmodifiableSet(getAllCopy());
+            snapshotVersion = version;
+        }
+        return snapshot;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Uniform sample of n entries, a partial Fisher-Yates shuffle of the
+     * first n slots. Costs O(n) whatever the view size, the order of the
+     * slots does not matter.
+     */
     private List<CroupierViewEntry> generateRandomSample(int n) {
-        List<CroupierViewEntry> randomEntries = new ArrayList<CroupierViewEntry>();
-        if (n >= d2e.size()) {
+        List<CroupierViewEntry> randomEntries = new ArrayList<CroupierViewEntry>(Math.min(n, size));
+        if (n >= size) {
             //return a copy of all entries
-            randomEntries.addAll(d2e.values());
+            for (int i = 0; i < size; i++) {
+                randomEntries.add(entries[i]);
+            }
             return randomEntries;
         }
-        ArrayList<CroupierViewEntry> entries = new ArrayList<CroupierViewEntry>(d2e.values());
-        // Don Knuth, The Art of Computer Programming, Algorithm S(3.4.2)
-        int t = 0, m = 0, N = d2e.size();
-        while (m < n) {
-            int x = rand.nextInt(N - t);
-            if (x < n - m) {
-                randomEntries.add(entries.get(t));
-                m += 1;
-                t += 1;
-            } else {
-                t += 1;
-            }
+        for (int i = 0; i < n; i++) {
+            swap(i, i + rand.nextInt(size - i));
+            randomEntries.add(entries[i]);
         }
         return randomEntries;
     }
 
+    private CroupierViewEntry<C> getEntry(BasicAddress src) {
+        Integer slot = d2s.get(src);
+        return slot == null ? null : entries[slot];
+    }
+
     private void addEntry(CroupierViewEntry entry) {
-        d2e.put((BasicAddress)entry.getDescriptor().getSource().getBaseAdr(), entry);
+        BasicAddress src = (BasicAddress)entry.getDescriptor().getSource().getBaseAdr();
+        Integer slot = d2s.get(src);
+        version++;
+        if (slot != null) {
+            byAge.remove(entries[slot]);
+            byAge.add(entry);
+            entries[slot] = entry;
+            return;
+        }
+        byAge.add(entry);
+        if (size == entries.length) {
+            entries = Arrays.copyOf(entries, size * 2);
+        }
+        entries[size] = entry;
+        d2s.put(src, size);
+        size++;
     }
 
+    /**
+     * Swap-remove, the last entry takes the freed slot
+     */
     private boolean removeEntry(BasicAddress src) {
-        return d2e.remove(src) != null;
+        Integer slot = d2s.remove(src);
+        if (slot == null) {
+            return false;
+        }
+        byAge.remove(entries[slot]);
+        version++;
+        size--;
+        if (slot != size) {
+            entries[slot] = entries[size];
+            d2s.put((BasicAddress)entries[slot].getDescriptor().getSource().getBaseAdr(), slot);
+        }
+        entries[size] = null;
+        return true;
+    }
+
+    private void swap(int i, int j) {
+        if (i == j) {
+            return;
+        }
+        CroupierViewEntry<C> tmp = entries[i];
+        entries[i] = entries[j];
+        entries[j] = tmp;
+        d2s.put((BasicAddress)entries[i].getDescriptor().getSource().getBaseAdr(), i);
+        d2s.put((BasicAddress)entries[j].getDescriptor().getSource().getBaseAdr(), j);
     }
 
     public void timedOut(NatedAddress src) {
@@ -235,37 +344,38 @@ public class CroupierView<C extends Object> {
     }
 
     public boolean isEmpty() {
-        return d2e.isEmpty();
+        return size == 0;
     }
 
     public int size() {
-        return d2e.size();
+        return size;
     }
 
     //TODO Alex check if it matched to Abhi's soft max and replace
-    private int softMaxIndex(ArrayList<CroupierViewEntry> entries, double temperature) {
+    /**
+     * @param entries ordered, the head has the highest probability
+     */
+    private CroupierViewEntry softMaxEntry(Set<CroupierViewEntry> entries, double temperature) {
         double rnd = rand.nextDouble();
+        int n = entries.size();
+        // get inverse of values - lowest have highest value.
         double total = 0.0d;
-        double[] values = new double[entries.size()];
-        int j = entries.size() + 1;
-        for (int i = 0; i < entries.size(); i++) {
-            // get inverse of values - lowest have highest value.
-            double val = j;
-            j--;
-            values[i] = Math.exp(val / temperature);
-            total += values[i];
+        for (int j = n + 1; j > 1; j--) {
+            total += Math.exp(j / temperature);
         }
 
-        for (int i = 0; i < values.length; i++) {
-            if (i != 0) {
-                values[i] += values[i - 1];
-            }
+        double cumulative = 0.0d;
+        int j = n + 1;
+        CroupierViewEntry last = null;
+        for (CroupierViewEntry entry : entries) {
+            cumulative += Math.exp(j / temperature);
+            j--;
             // normalise the probability
-            double normalisedReward = values[i] / total;
-            if (normalisedReward >= rnd) {
-                return i;
+            if (cumulative / total >= rnd) {
+                return entry;
             }
+            last = entry;
         }
-        return -1;
+        return last;
     }
 }
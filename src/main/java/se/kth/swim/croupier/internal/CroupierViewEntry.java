@@ -20,60 +20,59 @@
  */
 package se.kth.swim.croupier.internal;
 
-import java.util.Comparator;
-import java.util.HashSet;
-import java.util.Set;
-import se.sics.p2ptoolbox.util.network.impl.BasicAddress;
-
 /**
  * The <code>RandomViewEntry</code> class represents an entry in a node's
- * randomView. It contains a node descriptor and it marks when and to what peer this
- * entry was last sent to. This information is used in the process of updating
- * the randomView during a shuffle, so that the first randomView entries removed are those
- * that were sent to the peer from whom we received the current shuffle
- * response.
+ * randomView. It contains a node descriptor and it marks when this entry was
+ * last sent. The entries sent in each shuffle are recorded by the view, so
+ * that the first randomView entries removed are those that were sent to the
+ * peer from whom we received the current shuffle response.
  * 
  * @author Cosmin Arad <cosmin@sics.se>, Gautier Berthou
  * @author Alex Ormenisan <aaor@sics.se>
  */
 public class CroupierViewEntry<C extends Object> {
 
-    public static enum Order implements Comparator<CroupierViewEntry> {
-        ByAge() {
-            
-            public int compare(CroupierViewEntry o1, CroupierViewEntry o2) {
-                if (o1.getDescriptor().getAge() > o2.getDescriptor().getAge()) {
-                    return 1;
-                } else if (o1.getDescriptor().getAge() < o2.getDescriptor().getAge()) {
-                    return -1;
-                } else {
-                    return 0;
-                }
-            }
-        };
-    }
-
     private final CroupierContainer<C> cc;
+    // age of the descriptor minus the view epoch it was added at
+    private final int ageBase;
     private final long addedAt;
     private long sentAt;
-    private final Set<BasicAddress> sentTo = new HashSet<BasicAddress>();
 
-    public CroupierViewEntry(CroupierContainer<C> cc) {
+    /**
+     * @param epoch current epoch of the view, the descriptor gets one year
+     * older with every epoch from now on
+     */
+    public CroupierViewEntry(CroupierContainer<C> cc, int epoch) {
         this.cc = cc;
+        this.ageBase = cc.getAge() - epoch;
         this.addedAt = System.currentTimeMillis();
         this.sentAt = 0;
     }
 
 
-    public void sentTo(BasicAddress peer) {
-        sentTo.add(peer);
+    public void sent() {
         sentAt = System.currentTimeMillis();
     }
 
+    /**
+     * @return the descriptor with the age it had when added, see
+     * {@link #getAge(int)}
+     */
     public CroupierContainer<C> getDescriptor() {
         return cc;
     }
 
+    public int getAge(int epoch) {
+        return ageBase + epoch;
+    }
+
+    /**
+     * shallow copy with the current age
+     */
+    public CroupierContainer<C> getCopy(int epoch) {
+        return new CroupierContainer<C>(cc.getSource(), cc.getContent(), getAge(epoch));
+    }
+
     public long getAddedAt() {
         return addedAt;
     }
@@ -82,10 +81,6 @@ public class CroupierViewEntry<C extends Object> {
         return sentAt;
     }
 
-    public boolean wasSentTo(BasicAddress peer) {
-        return sentTo == null ? false : sentTo.contains(peer);
-    }
-    
     @Override
     public String toString() {
         return cc.toString() + ": addedAt(" + addedAt + "): sentAt:(" + sentAt +")";
@@ -30,11 +30,25 @@ public class CroupierSample<C extends Object> implements CroupierMsg.OneWay {
     public final int overlayId;
     public final Set<Container<NatedAddress, C>> publicSample;
     public final Set<Container<NatedAddress, C>> privateSample;
+    // a sample with the same version as the last one has the same nodes
+    public final long publicVersion;
+    public final long privateVersion;
     
     public CroupierSample(int overlayId, Set<Container<NatedAddress, C>> publicSample, Set<Container<NatedAddress, C>> privateSample) {
+        this(overlayId, publicSample, privateSample, -1, -1);
+    }
+
+    /**
+     * The samples are immutable and shared between the subscribers, which
+     * can keep them without copying
+     */
+    public CroupierSample(int overlayId, Set<Container<NatedAddress, C>> publicSample, Set<Container<NatedAddress, C>> privateSample,
+            long publicVersion, long privateVersion) {
         this.overlayId = overlayId;
         this.publicSample = publicSample;
         this.privateSample = privateSample;
+        this.publicVersion = publicVersion;
+        this.privateVersion = privateVersion;
     }
 
     @Override
@@ -7,8 +7,8 @@ public class IndirectPing extends MessageCounter {
   private final Peer indirectPingRequester;
 	private final UUID deadPingTimeout;
 	
-	public IndirectPing(Peer requester, UUID deadPingTimeout, Integer counter) {
-		super(counter);
+	public IndirectPing(Peer requester, UUID deadPingTimeout, Integer counter, int epoch) {
+		super(counter, epoch);
 		this.indirectPingRequester = requester;
     this.deadPingTimeout = deadPingTimeout;
 	}
@@ -8,8 +8,8 @@ public class IndirectPong extends MessageCounter{
   private final Peer suspected;
 	private final UUID deadTImeout;
 	
-	public IndirectPong(Peer initiator, Peer suspected, UUID deadTimeout, Integer counter) {
-		super(counter);
+	public IndirectPong(Peer initiator, Peer suspected, UUID deadTimeout, Integer counter, int epoch) {
+		super(counter, epoch);
 		this.initiator = initiator;
     this.suspected = suspected;
 		this.deadTImeout = deadTimeout;
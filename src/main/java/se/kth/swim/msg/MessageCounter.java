@@ -1,13 +1,24 @@
 package se.kth.swim.msg;
 
+/**
+ * Counter of a SWIM message, with the epoch of its sender. The epoch is
+ * chosen anew every time a node starts, so a restarted node whose counter
+ * starts over is told apart from duplicates of its old messages.
+ */
 public class MessageCounter {
 	private Integer counter;
+	private int epoch;
 	
-	public MessageCounter(Integer counter) {
+	public MessageCounter(Integer counter, int epoch) {
 		this.counter = counter;
+		this.epoch = epoch;
 	}
 	
 	public Integer getCounter() {
 		return counter;
 	}
+
+	public int getEpoch() {
+		return epoch;
+	}
 }
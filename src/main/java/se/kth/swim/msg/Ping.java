@@ -30,8 +30,8 @@ public class Ping extends MessageCounter {
 	private List<Peer> piggyback;
 	private UUID pingTimeoutUUID;
 	
-	public Ping(List<Peer> piggyback, UUID pingTimeoutUUID, Integer counter) {
-		super(counter);
+	public Ping(List<Peer> piggyback, UUID pingTimeoutUUID, Integer counter, int epoch) {
+		super(counter, epoch);
 		this.piggyback = piggyback;
 		this.pingTimeoutUUID = pingTimeoutUUID;
 	}
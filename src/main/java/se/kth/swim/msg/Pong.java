@@ -8,8 +8,8 @@ public class Pong extends MessageCounter {
 	private final List<Peer> view;
 	private final UUID pingTimeoutUUID;
 	
-	public Pong(List<Peer> view, UUID pingTimeoutUUID, Integer counter) {
-		super(counter);
+	public Pong(List<Peer> view, UUID pingTimeoutUUID, Integer counter, int epoch) {
+		super(counter, epoch);
 		this.view = view;
 		this.pingTimeoutUUID = pingTimeoutUUID;
 	}
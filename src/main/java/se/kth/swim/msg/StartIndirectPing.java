@@ -26,8 +26,8 @@ public class StartIndirectPing extends MessageCounter {
   private final Peer initiatorPeer;
 	private final UUID deadPingTimeout;
 	
-	public StartIndirectPing(Peer initiatorPeer, Peer suspectedPeer, UUID deadPingTimeout, Integer counter) {
-		super(counter);
+	public StartIndirectPing(Peer initiatorPeer, Peer suspectedPeer, UUID deadPingTimeout, Integer counter, int epoch) {
+		super(counter, epoch);
 		this.suspectedPeer = suspectedPeer;
     this.initiatorPeer = initiatorPeer;
 		this.deadPingTimeout = deadPingTimeout;
@@ -25,8 +25,8 @@ public class StopIndirectPing extends MessageCounter {
   private final Peer suspectedPeer;
   private final UUID deadPingTimeout;
   
-  public StopIndirectPing(Peer suspected, UUID timeout, Integer counter) {
-	  super(counter);
+  public StopIndirectPing(Peer suspected, UUID timeout, Integer counter, int epoch) {
+	  super(counter, epoch);
     this.suspectedPeer = suspected;
     this.deadPingTimeout = timeout;
   }
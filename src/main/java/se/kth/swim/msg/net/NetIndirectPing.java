@@ -28,7 +28,7 @@ public class NetIndirectPing extends NetMsg<IndirectPing> {
     super(source, destination, ping);
   }
   
-  private NetIndirectPing(Header<NatedAddress> header, IndirectPing content) {
+  NetIndirectPing(Header<NatedAddress> header, IndirectPing content) {
     super(header, content);
   }
 
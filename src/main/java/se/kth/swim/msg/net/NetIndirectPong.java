@@ -28,7 +28,7 @@ public class NetIndirectPong extends NetMsg<IndirectPong>{
     super(source, destination, pong);
   }
   
-  private NetIndirectPong(Header<NatedAddress> header, IndirectPong content) {
+  NetIndirectPong(Header<NatedAddress> header, IndirectPong content) {
     super(header, content);
   }
   @Override
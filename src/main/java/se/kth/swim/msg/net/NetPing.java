@@ -30,11 +30,11 @@ import se.sics.p2ptoolbox.util.network.NatedAddress;
  */
 public class NetPing extends NetMsg<Ping> {
 
-    public NetPing(NatedAddress src, NatedAddress dst, List<Peer> piggyback, UUID pingTimeoutUUID, Integer counter) {
-        super(src, dst, new Ping(piggyback, pingTimeoutUUID, counter));
+    public NetPing(NatedAddress src, NatedAddress dst, List<Peer> piggyback, UUID pingTimeoutUUID, Integer counter, int epoch) {
+        super(src, dst, new Ping(piggyback, pingTimeoutUUID, counter, epoch));
     }
 
-    private NetPing(Header<NatedAddress> header, Ping content) {
+    NetPing(Header<NatedAddress> header, Ping content) {
         super(header, content);
     }
 
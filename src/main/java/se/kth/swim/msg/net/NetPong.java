@@ -9,8 +9,8 @@ import se.sics.p2ptoolbox.util.network.NatedAddress;
 
 public class NetPong extends NetMsg<Pong> {
 
-	public NetPong(NatedAddress src, NatedAddress dst, List<Peer> view, UUID pingTimeoutUUID, Integer counter) {
-        super(src, dst, new Pong(view, pingTimeoutUUID, counter));
+	public NetPong(NatedAddress src, NatedAddress dst, List<Peer> view, UUID pingTimeoutUUID, Integer counter, int epoch) {
+        super(src, dst, new Pong(view, pingTimeoutUUID, counter, epoch));
     }
 	
 	public NetPong(Header<NatedAddress> header, Pong content) {
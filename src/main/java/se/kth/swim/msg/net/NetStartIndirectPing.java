@@ -28,7 +28,7 @@ public class NetStartIndirectPing extends NetMsg<StartIndirectPing> {
     super(source, destination, siping);
   }
   
-  private NetStartIndirectPing(Header<NatedAddress> header, StartIndirectPing content) {
+  NetStartIndirectPing(Header<NatedAddress> header, StartIndirectPing content) {
     super(header, content);
   }
 
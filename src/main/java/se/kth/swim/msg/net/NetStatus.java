@@ -33,7 +33,7 @@ public class NetStatus extends NetMsg<Status> {
         super(src, dst, status);
     }
 
-    private NetStatus(Header<NatedAddress> header, Status content) {
+    NetStatus(Header<NatedAddress> header, Status content) {
         super(header, content);
     }
 
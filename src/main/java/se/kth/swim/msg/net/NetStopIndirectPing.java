@@ -28,7 +28,7 @@ public class NetStopIndirectPing extends NetMsg<StopIndirectPing> {
     super(source, destination, siping);
   }
   
-  private NetStopIndirectPing(Header<NatedAddress> header, StopIndirectPing content) {
+  NetStopIndirectPing(Header<NatedAddress> header, StopIndirectPing content) {
     super(header, content);
   }
 
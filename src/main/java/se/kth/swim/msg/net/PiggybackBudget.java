@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * GVoD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.swim.msg.net;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import se.kth.swim.NodeState;
+import se.kth.swim.Peer;
+import se.sics.p2ptoolbox.util.network.NatedAddress;
+
+/**
+ * Byte budget of a piggyback, so that the piggybacked peers of a message
+ * fit in one datagram. Peers are added one at a time and every peer is
+ * charged an upper bound of what it adds to the {@link PiggybackCodec}
+ * encoding, parents already charged by a previous peer only cost their
+ * dictionary reference.
+ */
+public class PiggybackBudget {
+	// Room for the entry count, up to 16383 entries
+	private static final int COUNT_BYTES = 2;
+	// Smallest possible entry: flags, id and incarnation of one byte each
+	private static final int MIN_ENTRY_BYTES = 3;
+
+	private final int bytes;
+	private final Set<NatedAddress> dictionary;
+	private int used;
+
+	/**
+	 * @param bytes
+	 *            Bytes available for the piggyback, see
+	 *            {@link SwimCodec#piggybackBudget(int, NatedAddress, NatedAddress)}
+	 *            .
+	 */
+	public PiggybackBudget(int bytes) {
+		this.bytes = bytes;
+		this.dictionary = new HashSet<>();
+		this.used = COUNT_BYTES;
+	}
+
+	/**
+	 * Charges the peer to the budget if it fits.
+	 * 
+	 * @return False, without charging anything, if the peer does not fit.
+	 */
+	public boolean tryAdd(Peer peer) {
+		NatedAddress node = peer.getNode();
+		// The id delta after sorting is never larger than the id itself
+		int cost = 1
+				+ PiggybackCodec.varintSize(PiggybackCodec.zigZag(node
+						.getId()))
+				+ PiggybackCodec.varintSize(peer.getIncarnation());
+		int added = 0;
+		if (peer.getState() == NodeState.ALIVE) {
+			cost += PiggybackCodec.endpointSize(node);
+			if (!node.isOpen()) {
+				cost += PiggybackCodec.varintSize(node.getParents().size());
+				for (NatedAddress parent : node.getParents()) {
+					if (dictionary.contains(parent)) {
+						cost += PiggybackCodec.varintSize(dictionary.size()
+								+ node.getParents().size());
+					} else {
+						added++;
+						cost += PiggybackCodec.maxAddressSize(parent);
+					}
+				}
+			}
+		}
+
+		if (used + cost > bytes) {
+			return false;
+		}
+		used += cost;
+		if (added > 0) {
+			dictionary.addAll(node.getParents());
+		}
+		return true;
+	}
+
+	/**
+	 * @return True if not even the smallest entry fits anymore.
+	 */
+	public boolean isFull() {
+		return used + MIN_ENTRY_BYTES > bytes;
+	}
+
+	/**
+	 * @return Bytes charged so far.
+	 */
+	public int getUsed() {
+		return used;
+	}
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * GVoD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.swim.msg.net;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import se.kth.swim.NodeState;
+import se.kth.swim.Peer;
+import se.sics.p2ptoolbox.util.network.NatType;
+import se.sics.p2ptoolbox.util.network.NatedAddress;
+import se.sics.p2ptoolbox.util.network.impl.BasicAddress;
+import se.sics.p2ptoolbox.util.network.impl.BasicNatedAddress;
+
+/**
+ * Compact encoding of piggybacked peer lists.
+ * 
+ * Entries are sorted by node id and every entry starts with a flags byte
+ * (state in the two low bits, then an address and a NAT bit), followed by
+ * the id as a varint delta from the previous entry and the incarnation as a
+ * varint. Only ALIVE entries carry the address of the node: they announce
+ * joins and new parents after a NAT update, while suspicions and deaths are
+ * about nodes the receiver already knows and are dropped by the receiver if
+ * it does not. Parents go through a dictionary of the message, the first
+ * time an address is written it gets the next index and later it is only
+ * referenced by that index, since NAT nodes mostly share the same parents.
+ */
+final class PiggybackCodec {
+	private static final int STATE_MASK = 0x03;
+	private static final int HAS_ADDRESS = 0x04;
+	private static final int NATED = 0x08;
+
+	private static final NodeState[] STATES = NodeState.values();
+	private static final NatType[] NAT_TYPES = NatType.values();
+
+	private PiggybackCodec() {
+	}
+
+	static void write(List<Peer> peers, ByteBuffer buffer) {
+		List<Peer> sorted = sortById(peers);
+		Map<NatedAddress, Integer> dictionary = new HashMap<>();
+
+		writeVarint(sorted.size(), buffer);
+		int previousId = 0;
+		for (Peer peer : sorted) {
+			NatedAddress node = peer.getNode();
+			boolean hasAddress = peer.getState() == NodeState.ALIVE;
+			int flags = peer.getState().ordinal();
+			if (hasAddress) {
+				flags |= HAS_ADDRESS;
+				if (!node.isOpen()) {
+					flags |= NATED;
+				}
+			}
+
+			buffer.put((byte) flags);
+			writeVarint(zigZag(node.getId() - previousId), buffer);
+			writeVarint(peer.getIncarnation(), buffer);
+			if (hasAddress) {
+				writeEndpoint(node, buffer);
+				if (!node.isOpen()) {
+					writeParents(node, dictionary, buffer);
+				}
+			}
+			previousId = node.getId();
+		}
+	}
+
+	/**
+	 * @param resolver
+	 *            Addresses of the nodes the receiver knows, used for the
+	 *            entries without address.
+	 */
+	static List<Peer> read(ByteBuffer buffer, AddressResolver resolver) {
+		List<NatedAddress> dictionary = new ArrayList<>();
+
+		int size = readVarint(buffer);
+		List<Peer> peers = new ArrayList<>(Math.min(size, 1024));
+		int id = 0;
+		for (int i = 0; i < size; i++) {
+			int flags = buffer.get();
+			id += unZigZag(readVarint(buffer));
+			int incarnation = readVarint(buffer);
+			NodeState state = STATES[flags & STATE_MASK];
+
+			NatedAddress node;
+			if ((flags & HAS_ADDRESS) != 0) {
+				BasicAddress base = readEndpoint(id, buffer);
+				if ((flags & NATED) != 0) {
+					node = new BasicNatedAddress(base, NatType.NAT,
+							readParents(dictionary, buffer));
+				} else {
+					node = new BasicNatedAddress(base);
+				}
+			} else {
+				node = resolver.resolve(id);
+			}
+
+			if (node != null) {
+				peers.add(new Peer(node, state, incarnation));
+			}
+		}
+		return peers;
+	}
+
+	/**
+	 * @return Bytes written by {@link #write(List, ByteBuffer)} for the peers.
+	 */
+	static int size(List<Peer> peers) {
+		List<Peer> sorted = sortById(peers);
+		Map<NatedAddress, Integer> dictionary = new HashMap<>();
+
+		int size = varintSize(sorted.size());
+		int previousId = 0;
+		for (Peer peer : sorted) {
+			size += entrySize(peer, peer.getNode().getId() - previousId,
+					dictionary);
+			previousId = peer.getNode().getId();
+		}
+		return size;
+	}
+
+	/**
+	 * Bytes of one entry, adding its parents to the dictionary.
+	 * 
+	 * @param idDelta
+	 *            Difference with the id of the previous entry.
+	 * @param dictionary
+	 *            Addresses already written in the message.
+	 */
+	static int entrySize(Peer peer, int idDelta,
+			Map<NatedAddress, Integer> dictionary) {
+		NatedAddress node = peer.getNode();
+		int size = 1 + varintSize(zigZag(idDelta))
+				+ varintSize(peer.getIncarnation());
+		if (peer.getState() == NodeState.ALIVE) {
+			size += endpointSize(node);
+			if (!node.isOpen()) {
+				size += parentsSize(node, dictionary);
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Upper bound of the bytes an entry adds to a list, whatever the other
+	 * entries are. Parents are counted as if they were not in the dictionary
+	 * yet.
+	 */
+	static int maxEntrySize(Peer peer) {
+		return entrySize(peer, peer.getNode().getId(),
+				new HashMap<NatedAddress, Integer>());
+	}
+
+	private static List<Peer> sortById(List<Peer> peers) {
+		List<Peer> sorted = new ArrayList<>(peers);
+		Collections.sort(sorted, (a, b) -> Integer.compare(a.getNode().getId(),
+				b.getNode().getId()));
+		return sorted;
+	}
+
+	private static void writeParents(NatedAddress node,
+			Map<NatedAddress, Integer> dictionary, ByteBuffer buffer) {
+		writeVarint(node.getParents().size(), buffer);
+		for (NatedAddress parent : node.getParents()) {
+			Integer index = dictionary.get(parent);
+			if (index != null) {
+				writeVarint(index + 1, buffer);
+			} else {
+				// 0 announces a new address, it takes the next index
+				writeVarint(0, buffer);
+				dictionary.put(parent, dictionary.size());
+				writeVarint(zigZag(parent.getId()), buffer);
+				buffer.put((byte) parent.getNatType().ordinal());
+				writeEndpoint(parent, buffer);
+				if (!parent.isOpen()) {
+					writeParents(parent, dictionary, buffer);
+				}
+			}
+		}
+	}
+
+	private static Set<NatedAddress> readParents(
+			List<NatedAddress> dictionary, ByteBuffer buffer) {
+		int size = readVarint(buffer);
+		Set<NatedAddress> parents = new HashSet<>();
+		for (int i = 0; i < size; i++) {
+			int index = readVarint(buffer);
+			if (index > 0) {
+				parents.add(dictionary.get(index - 1));
+			} else {
+				// Reserve the index before the nested parents take theirs
+				int slot = dictionary.size();
+				dictionary.add(null);
+				int id = unZigZag(readVarint(buffer));
+				NatType natType = NAT_TYPES[buffer.get()];
+				BasicAddress base = readEndpoint(id, buffer);
+				NatedAddress parent = natType == NatType.OPEN ? new BasicNatedAddress(
+						base) : new BasicNatedAddress(base, natType,
+						readParents(dictionary, buffer));
+				dictionary.set(slot, parent);
+				parents.add(parent);
+			}
+		}
+		return parents;
+	}
+
+	private static int parentsSize(NatedAddress node,
+			Map<NatedAddress, Integer> dictionary) {
+		int size = varintSize(node.getParents().size());
+		for (NatedAddress parent : node.getParents()) {
+			Integer index = dictionary.get(parent);
+			if (index != null) {
+				size += varintSize(index + 1);
+			} else {
+				dictionary.put(parent, dictionary.size());
+				size += 1 + varintSize(zigZag(parent.getId())) + 1
+						+ endpointSize(parent);
+				if (!parent.isOpen()) {
+					size += parentsSize(parent, dictionary);
+				}
+			}
+		}
+		return size;
+	}
+
+	private static void writeEndpoint(NatedAddress address, ByteBuffer buffer) {
+		byte[] ip = address.getIp().getAddress();
+		buffer.put((byte) ip.length);
+		buffer.put(ip);
+		buffer.putShort((short) address.getPort());
+	}
+
+	private static BasicAddress readEndpoint(int id, ByteBuffer buffer) {
+		byte[] ip = new byte[buffer.get() & 0xFF];
+		buffer.get(ip);
+		int port = buffer.getShort() & 0xFFFF;
+		try {
+			return new BasicAddress(InetAddress.getByAddress(ip), port, id);
+		} catch (UnknownHostException ex) {
+			throw new IllegalArgumentException("Bad ip address", ex);
+		}
+	}
+
+	/**
+	 * @return Bytes of an address written in full in the dictionary, with an
+	 *         upper bound for its own parents.
+	 */
+	static int maxAddressSize(NatedAddress address) {
+		int size = 1 + varintSize(zigZag(address.getId())) + 1
+				+ endpointSize(address);
+		if (!address.isOpen()) {
+			size += parentsSize(address, new HashMap<NatedAddress, Integer>());
+		}
+		return size;
+	}
+
+	static int endpointSize(NatedAddress address) {
+		return 1 + address.getIp().getAddress().length + 2;
+	}
+
+	static void writeVarint(int value, ByteBuffer buffer) {
+		while ((value & ~0x7F) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	static int readVarint(ByteBuffer buffer) {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			byte b = buffer.get();
+			value |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Malformed varint");
+	}
+
+	static int varintSize(int value) {
+		int size = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	static int zigZag(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+
+	private static int unZigZag(int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+}
@@ -0,0 +1,568 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * GVoD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.swim.msg.net;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import se.kth.swim.NodeState;
+import se.kth.swim.Peer;
+import se.kth.swim.msg.IndirectPing;
+import se.kth.swim.msg.IndirectPong;
+import se.kth.swim.msg.MessageCounter;
+import se.kth.swim.msg.Ping;
+import se.kth.swim.msg.Pong;
+import se.kth.swim.msg.StartIndirectPing;
+import se.kth.swim.msg.Status;
+import se.kth.swim.msg.StopIndirectPing;
+import se.kth.swim.nat.msg.Batch;
+import se.kth.swim.nat.msg.NetBatch;
+import se.kth.swim.nat.msg.Payload;
+import se.sics.kompics.network.Header;
+import se.sics.kompics.network.Transport;
+import se.sics.p2ptoolbox.util.network.NatType;
+import se.sics.p2ptoolbox.util.network.NatedAddress;
+import se.sics.p2ptoolbox.util.network.impl.BasicAddress;
+import se.sics.p2ptoolbox.util.network.impl.BasicHeader;
+import se.sics.p2ptoolbox.util.network.impl.BasicNatedAddress;
+import se.sics.p2ptoolbox.util.network.impl.RelayHeader;
+import se.sics.p2ptoolbox.util.network.impl.SourceHeader;
+
+/**
+ * Binary wire format of the SWIM messages, written by hand on a
+ * {@link ByteBuffer}. A message is encoded as
+ * 
+ * <pre>
+ * type:1 | header | content
+ * </pre>
+ * 
+ * The header is a tag followed by source and destination, with the relay
+ * address and the actual header for relayed messages. Addresses are
+ * id:4 | ip length:1 | ip | port:2 | nat type:1 | parents:1 | parent
+ * addresses, peers are an address followed by state:1 | incarnation:4 and
+ * UUIDs take 16 bytes. SWIM messages start with the counter:4 | epoch:4 of
+ * their sender. All integers are big endian. Piggybacked peer lists
+ * use the compact {@link PiggybackCodec} encoding instead. A {@link Batch}
+ * is a count followed by its messages, each encoded as above. A
+ * {@link Payload} holds the type and content of a message already encoded,
+ * so a relayed message is written the same as the message itself.
+ */
+public final class SwimCodec {
+	public static final byte PING = 1;
+	public static final byte PONG = 2;
+	public static final byte START_INDIRECT_PING = 3;
+	public static final byte INDIRECT_PING = 4;
+	public static final byte INDIRECT_PONG = 5;
+	public static final byte STOP_INDIRECT_PING = 6;
+	public static final byte STATUS = 7;
+	public static final byte BATCH = 8;
+
+	/**
+	 * Bytes a relay adds to the header: the tag and an open IPv6 address.
+	 */
+	private static final int RELAY_HEADER_BYTES = 1 + 4 + 1 + 16 + 2 + 1 + 1;
+
+	/**
+	 * Bytes of the message counter and the epoch of its sender.
+	 */
+	private static final int COUNTER_BYTES = 4 + 4;
+
+	private static final byte BASIC_HEADER = 0;
+	private static final byte SOURCE_HEADER = 1;
+	private static final byte RELAY_HEADER = 2;
+
+	private static final NodeState[] STATES = NodeState.values();
+	private static final NatType[] NAT_TYPES = NatType.values();
+	private static final Transport[] TRANSPORTS = Transport.values();
+
+	private SwimCodec() {
+	}
+
+	/**
+	 * @return The message encoded in a new array.
+	 */
+	public static byte[] toBytes(NetMsg<?> msg) {
+		ByteBuffer buffer = ByteBuffer.allocate(encodedSize(msg));
+		encode(msg, buffer);
+		return buffer.array();
+	}
+
+	/**
+	 * @return The message decoded from the whole array.
+	 */
+	public static NetMsg<?> fromBytes(byte[] bytes, AddressResolver resolver) {
+		return decode(ByteBuffer.wrap(bytes), resolver);
+	}
+
+	/**
+	 * Writes the message at the position of the buffer.
+	 * 
+	 * @throws java.nio.BufferOverflowException
+	 *             If the message does not fit in the buffer.
+	 * @throws IllegalArgumentException
+	 *             If the message is not a SWIM message.
+	 */
+	public static void encode(NetMsg<?> msg, ByteBuffer buffer) {
+		Object content = msg.getContent();
+		buffer.put(typeOf(content));
+		writeHeader(msg.getHeader(), buffer);
+		writeContent(content, buffer);
+	}
+
+	private static void writeContent(Object content, ByteBuffer buffer) {
+		if (content instanceof Payload) {
+			// Already encoded, copied as it is
+			buffer.put(((Payload) content).getBytes());
+		} else if (content instanceof Ping) {
+			Ping ping = (Ping) content;
+			writeCounter(ping, buffer);
+			writeUuid(ping.getPingTimeoutUUID(), buffer);
+			writePeers(ping.getPiggyback(), buffer);
+		} else if (content instanceof Pong) {
+			Pong pong = (Pong) content;
+			writeCounter(pong, buffer);
+			writeUuid(pong.getPingTimeoutUUID(), buffer);
+			writePeers(pong.getView(), buffer);
+		} else if (content instanceof StartIndirectPing) {
+			StartIndirectPing start = (StartIndirectPing) content;
+			writeCounter(start, buffer);
+			writeUuid(start.getDeadPingTimeout(), buffer);
+			writePeer(start.getInitiatorPeer(), buffer);
+			writePeer(start.getSuspectedPeer(), buffer);
+		} else if (content instanceof IndirectPing) {
+			IndirectPing ping = (IndirectPing) content;
+			writeCounter(ping, buffer);
+			writeUuid(ping.getDeadPingTimeout(), buffer);
+			writePeer(ping.getIndirectPingRequester(), buffer);
+		} else if (content instanceof IndirectPong) {
+			IndirectPong pong = (IndirectPong) content;
+			writeCounter(pong, buffer);
+			writeUuid(pong.getDeadTImeout(), buffer);
+			writePeer(pong.getInitiatorPeer(), buffer);
+			writePeer(pong.getSuspectedPeer(), buffer);
+		} else if (content instanceof StopIndirectPing) {
+			StopIndirectPing stop = (StopIndirectPing) content;
+			writeCounter(stop, buffer);
+			writeUuid(stop.getDeadPingTimeout(), buffer);
+			writePeer(stop.getSuspectedPeer(), buffer);
+		} else if (content instanceof Batch) {
+			List<NetMsg<Object>> messages = ((Batch) content).getMessages();
+			PiggybackCodec.writeVarint(messages.size(), buffer);
+			for (NetMsg<Object> message : messages) {
+				encode(message, buffer);
+			}
+		} else {
+			Status status = (Status) content;
+			buffer.putInt(status.getReceivedPings());
+			buffer.putInt(status.getDeadNodes());
+			buffer.putInt(status.getAliveNodes());
+			buffer.putInt(status.getSuspectedNodes());
+		}
+	}
+
+	/**
+	 * Reads one message from the position of the buffer.
+	 * 
+	 * @param resolver
+	 *            Addresses of the nodes we know, piggybacked entries sent
+	 *            without address about other nodes are dropped.
+	 * @throws IllegalArgumentException
+	 *             If the buffer does not hold a valid SWIM message.
+	 */
+	public static NetMsg<?> decode(ByteBuffer buffer, AddressResolver resolver) {
+		try {
+			byte type = buffer.get();
+			Header<NatedAddress> header = readHeader(buffer);
+			return readContent(type, header, buffer, resolver);
+		} catch (BufferUnderflowException | IndexOutOfBoundsException ex) {
+			throw new IllegalArgumentException("Truncated message", ex);
+		}
+	}
+
+	private static NetMsg<?> readContent(byte type,
+			Header<NatedAddress> header, ByteBuffer buffer,
+			AddressResolver resolver) {
+		switch (type) {
+		case PING: {
+			int counter = buffer.getInt();
+			int epoch = buffer.getInt();
+			UUID timeout = readUuid(buffer);
+			return new NetPing(header, new Ping(readPeers(buffer, resolver), timeout,
+					counter, epoch));
+		}
+		case PONG: {
+			int counter = buffer.getInt();
+			int epoch = buffer.getInt();
+			UUID timeout = readUuid(buffer);
+			return new NetPong(header, new Pong(readPeers(buffer, resolver), timeout,
+					counter, epoch));
+		}
+		case START_INDIRECT_PING: {
+			int counter = buffer.getInt();
+			int epoch = buffer.getInt();
+			UUID timeout = readUuid(buffer);
+			Peer initiator = readPeer(buffer);
+			return new NetStartIndirectPing(header, new StartIndirectPing(
+					initiator, readPeer(buffer), timeout, counter, epoch));
+		}
+		case INDIRECT_PING: {
+			int counter = buffer.getInt();
+			int epoch = buffer.getInt();
+			UUID timeout = readUuid(buffer);
+			return new NetIndirectPing(header, new IndirectPing(
+					readPeer(buffer), timeout, counter, epoch));
+		}
+		case INDIRECT_PONG: {
+			int counter = buffer.getInt();
+			int epoch = buffer.getInt();
+			UUID timeout = readUuid(buffer);
+			Peer initiator = readPeer(buffer);
+			return new NetIndirectPong(header, new IndirectPong(initiator,
+					readPeer(buffer), timeout, counter, epoch));
+		}
+		case STOP_INDIRECT_PING: {
+			int counter = buffer.getInt();
+			int epoch = buffer.getInt();
+			UUID timeout = readUuid(buffer);
+			return new NetStopIndirectPing(header, new StopIndirectPing(
+					readPeer(buffer), timeout, counter, epoch));
+		}
+		case STATUS: {
+			int receivedPings = buffer.getInt();
+			int deadNodes = buffer.getInt();
+			int aliveNodes = buffer.getInt();
+			return new NetStatus(header, new Status(receivedPings,
+					deadNodes, aliveNodes, buffer.getInt()));
+		}
+		case BATCH: {
+			int size = PiggybackCodec.readVarint(buffer);
+			List<NetMsg<Object>> messages = new ArrayList<>(Math.min(size,
+					64));
+			for (int i = 0; i < size; i++) {
+				messages.add((NetMsg<Object>) decode(buffer, resolver));
+			}
+			return new NetBatch(header, new Batch(messages));
+		}
+		default:
+			throw new IllegalArgumentException("Unknown message type "
+					+ type);
+		}
+	}
+
+	/**
+	 * @return Number of bytes {@link #encode(NetMsg, ByteBuffer)} writes for
+	 *         the message.
+	 */
+	public static int encodedSize(NetMsg<?> msg) {
+		Object content = msg.getContent();
+		typeOf(content);
+		return 1 + headerSize(msg.getHeader()) + contentSize(content);
+	}
+
+	private static int contentSize(Object content) {
+		int size = 0;
+		if (content instanceof Payload) {
+			size += ((Payload) content).getBytes().length;
+		} else if (content instanceof Ping) {
+			size += COUNTER_BYTES + 16
+					+ peersSize(((Ping) content).getPiggyback());
+		} else if (content instanceof Pong) {
+			size += COUNTER_BYTES + 16
+					+ peersSize(((Pong) content).getView());
+		} else if (content instanceof StartIndirectPing) {
+			StartIndirectPing start = (StartIndirectPing) content;
+			size += COUNTER_BYTES + 16 + peerSize(start.getInitiatorPeer())
+					+ peerSize(start.getSuspectedPeer());
+		} else if (content instanceof IndirectPing) {
+			size += COUNTER_BYTES + 16 + peerSize(((IndirectPing) content)
+					.getIndirectPingRequester());
+		} else if (content instanceof IndirectPong) {
+			IndirectPong pong = (IndirectPong) content;
+			size += COUNTER_BYTES + 16 + peerSize(pong.getInitiatorPeer())
+					+ peerSize(pong.getSuspectedPeer());
+		} else if (content instanceof StopIndirectPing) {
+			size += COUNTER_BYTES + 16 + peerSize(((StopIndirectPing) content)
+					.getSuspectedPeer());
+		} else if (content instanceof Batch) {
+			List<NetMsg<Object>> messages = ((Batch) content).getMessages();
+			size += PiggybackCodec.varintSize(messages.size());
+			for (NetMsg<Object> message : messages) {
+				size += encodedSize(message);
+			}
+		} else {
+			size += 4 * 4;
+		}
+		return size;
+	}
+
+	/**
+	 * @return Number of bytes a peer takes on the wire.
+	 */
+	public static int peerSize(Peer peer) {
+		return addressSize(peer.getNode()) + 1 + 4;
+	}
+
+	/**
+	 * Bytes left for the piggyback of a Ping or a Pong so that the whole
+	 * message fits in a datagram, also when it goes through a relay.
+	 * 
+	 * @param datagramBytes
+	 *            Maximum size of the encoded message.
+	 * @param src
+	 *            Source of the message.
+	 * @param dst
+	 *            Destination of the message.
+	 */
+	public static int piggybackBudget(int datagramBytes, NatedAddress src,
+			NatedAddress dst) {
+		int overhead = 1 + 2 + addressSize(src) + addressSize(dst)
+				+ RELAY_HEADER_BYTES + COUNTER_BYTES + 16;
+		return datagramBytes - overhead;
+	}
+
+	/**
+	 * @return Bytes of a batch from the source to the destination, without
+	 *         the batched messages, for up to 16383 messages.
+	 */
+	public static int batchOverhead(NatedAddress src, NatedAddress dst) {
+		return 1 + 2 + addressSize(src) + addressSize(dst) + 2;
+	}
+
+	/**
+	 * @return Upper bound of the bytes a peer adds to a piggyback.
+	 */
+	public static int piggybackEntrySize(Peer peer) {
+		return PiggybackCodec.maxEntrySize(peer);
+	}
+
+	/**
+	 * Encodes the content of the message, without its header, so that it can
+	 * be relayed with only the header rewritten.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             If the message is not a SWIM message.
+	 */
+	public static Payload toPayload(NetMsg<?> msg) {
+		Object content = msg.getContent();
+		byte type = typeOf(content);
+		ByteBuffer buffer = ByteBuffer.allocate(contentSize(content));
+		writeContent(content, buffer);
+		return new Payload(type, buffer.array());
+	}
+
+	/**
+	 * Decodes a relayed payload back into the message it was created from.
+	 * 
+	 * @param header
+	 *            Header of the decoded message.
+	 * @throws IllegalArgumentException
+	 *             If the payload does not hold a valid SWIM message.
+	 */
+	public static NetMsg<?> fromPayload(Header<NatedAddress> header,
+			Payload payload, AddressResolver resolver) {
+		try {
+			return readContent(payload.getType(), header,
+					ByteBuffer.wrap(payload.getBytes()), resolver);
+		} catch (BufferUnderflowException | IndexOutOfBoundsException ex) {
+			throw new IllegalArgumentException("Truncated message", ex);
+		}
+	}
+
+	/**
+	 * Reads the ping timeout UUID of an encoded PING or PONG without decoding
+	 * its piggyback, both start with the counter, the epoch and the UUID.
+	 * 
+	 * @return Null if the payload holds another message.
+	 */
+	public static UUID probeOf(Payload payload) {
+		byte[] bytes = payload.getBytes();
+		if ((payload.getType() != PING && payload.getType() != PONG)
+				|| bytes.length < COUNTER_BYTES + 16) {
+			return null;
+		}
+		return readUuid(ByteBuffer.wrap(bytes, COUNTER_BYTES, 16));
+	}
+
+	private static void writeCounter(MessageCounter msg, ByteBuffer buffer) {
+		buffer.putInt(msg.getCounter());
+		buffer.putInt(msg.getEpoch());
+	}
+
+	private static byte typeOf(Object content) {
+		if (content instanceof Payload) {
+			return ((Payload) content).getType();
+		} else if (content instanceof Ping) {
+			return PING;
+		} else if (content instanceof Pong) {
+			return PONG;
+		} else if (content instanceof StartIndirectPing) {
+			return START_INDIRECT_PING;
+		} else if (content instanceof IndirectPing) {
+			return INDIRECT_PING;
+		} else if (content instanceof IndirectPong) {
+			return INDIRECT_PONG;
+		} else if (content instanceof StopIndirectPing) {
+			return STOP_INDIRECT_PING;
+		} else if (content instanceof Status) {
+			return STATUS;
+		} else if (content instanceof Batch) {
+			return BATCH;
+		}
+		throw new IllegalArgumentException("Not a SWIM message: " + content);
+	}
+
+	private static void writeHeader(Header<NatedAddress> header,
+			ByteBuffer buffer) {
+		if (header instanceof SourceHeader) {
+			SourceHeader<NatedAddress> source = (SourceHeader<NatedAddress>) header;
+			buffer.put(SOURCE_HEADER);
+			writeAddress(source.getDestination(), buffer);
+			writeHeader(source.getRelayHeader().getActualHeader(), buffer);
+		} else if (header instanceof RelayHeader) {
+			RelayHeader<NatedAddress> relay = (RelayHeader<NatedAddress>) header;
+			buffer.put(RELAY_HEADER);
+			writeAddress(relay.getSource(), buffer);
+			writeHeader(relay.getActualHeader(), buffer);
+		} else {
+			buffer.put(BASIC_HEADER);
+			buffer.put((byte) header.getProtocol().ordinal());
+			writeAddress(header.getSource(), buffer);
+			writeAddress(header.getDestination(), buffer);
+		}
+	}
+
+	private static Header<NatedAddress> readHeader(ByteBuffer buffer) {
+		byte tag = buffer.get();
+		switch (tag) {
+		case SOURCE_HEADER: {
+			NatedAddress relay = readAddress(buffer);
+			return new SourceHeader<NatedAddress>(readHeader(buffer), relay);
+		}
+		case RELAY_HEADER: {
+			NatedAddress relay = readAddress(buffer);
+			return new RelayHeader<NatedAddress>(readHeader(buffer), relay);
+		}
+		case BASIC_HEADER: {
+			Transport protocol = TRANSPORTS[buffer.get()];
+			NatedAddress source = readAddress(buffer);
+			return new BasicHeader<NatedAddress>(source, readAddress(buffer),
+					protocol);
+		}
+		default:
+			throw new IllegalArgumentException("Unknown header " + tag);
+		}
+	}
+
+	private static int headerSize(Header<NatedAddress> header) {
+		if (header instanceof SourceHeader) {
+			SourceHeader<NatedAddress> source = (SourceHeader<NatedAddress>) header;
+			return 1 + addressSize(source.getDestination())
+					+ headerSize(source.getRelayHeader().getActualHeader());
+		} else if (header instanceof RelayHeader) {
+			RelayHeader<NatedAddress> relay = (RelayHeader<NatedAddress>) header;
+			return 1 + addressSize(relay.getSource())
+					+ headerSize(relay.getActualHeader());
+		}
+		return 2 + addressSize(header.getSource())
+				+ addressSize(header.getDestination());
+	}
+
+	private static void writePeers(List<Peer> peers, ByteBuffer buffer) {
+		PiggybackCodec.write(peers, buffer);
+	}
+
+	private static List<Peer> readPeers(ByteBuffer buffer,
+			AddressResolver resolver) {
+		return PiggybackCodec.read(buffer, resolver);
+	}
+
+	private static int peersSize(List<Peer> peers) {
+		return PiggybackCodec.size(peers);
+	}
+
+	private static void writePeer(Peer peer, ByteBuffer buffer) {
+		writeAddress(peer.getNode(), buffer);
+		buffer.put((byte) peer.getState().ordinal());
+		buffer.putInt(peer.getIncarnation());
+	}
+
+	private static Peer readPeer(ByteBuffer buffer) {
+		NatedAddress node = readAddress(buffer);
+		NodeState state = STATES[buffer.get()];
+		return new Peer(node, state, buffer.getInt());
+	}
+
+	private static void writeAddress(NatedAddress address, ByteBuffer buffer) {
+		byte[] ip = address.getIp().getAddress();
+		buffer.putInt(address.getId());
+		buffer.put((byte) ip.length);
+		buffer.put(ip);
+		buffer.putShort((short) address.getPort());
+		buffer.put((byte) address.getNatType().ordinal());
+		buffer.put((byte) address.getParents().size());
+		for (NatedAddress parent : address.getParents()) {
+			writeAddress(parent, buffer);
+		}
+	}
+
+	private static NatedAddress readAddress(ByteBuffer buffer) {
+		int id = buffer.getInt();
+		byte[] ip = new byte[buffer.get() & 0xFF];
+		buffer.get(ip);
+		int port = buffer.getShort() & 0xFFFF;
+		NatType natType = NAT_TYPES[buffer.get()];
+		int parentsSize = buffer.get() & 0xFF;
+
+		BasicAddress base;
+		try {
+			base = new BasicAddress(InetAddress.getByAddress(ip), port, id);
+		} catch (UnknownHostException ex) {
+			throw new IllegalArgumentException("Bad ip address", ex);
+		}
+		Set<NatedAddress> parents = new HashSet<>();
+		for (int i = 0; i < parentsSize; i++) {
+			parents.add(readAddress(buffer));
+		}
+		return new BasicNatedAddress(base, natType, parents);
+	}
+
+	private static int addressSize(NatedAddress address) {
+		int size = 4 + 1 + address.getIp().getAddress().length + 2 + 1 + 1;
+		for (NatedAddress parent : address.getParents()) {
+			size += addressSize(parent);
+		}
+		return size;
+	}
+
+	private static void writeUuid(UUID uuid, ByteBuffer buffer) {
+		buffer.putLong(uuid.getMostSignificantBits());
+		buffer.putLong(uuid.getLeastSignificantBits());
+	}
+
+	private static UUID readUuid(ByteBuffer buffer) {
+		return new UUID(buffer.getLong(), buffer.getLong());
+	}
+}
@@ -23,12 +23,26 @@ import se.sics.p2ptoolbox.util.network.NatedAddress;
 
 public class NatUpdate implements KompicsEvent {
   private final NatedAddress newSelfAddress;
+  private final boolean announce;
   
   public NatUpdate(NatedAddress newSelfAddress) {
+	  this(newSelfAddress, true);
+  }
+  
+  /**
+   * @param announce False if the new address should only be used locally
+   *            for now, without spreading a new incarnation.
+   */
+  public NatUpdate(NatedAddress newSelfAddress, boolean announce) {
 	  this.newSelfAddress = newSelfAddress;
+	  this.announce = announce;
   }
   
   public NatedAddress getNewNatedAddress() {
 	  return newSelfAddress;
   }
+  
+  public boolean isAnnounce() {
+	  return announce;
+  }
 }
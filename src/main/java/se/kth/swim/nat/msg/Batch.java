@@ -0,0 +1,21 @@
+package se.kth.swim.nat.msg;
+
+import java.util.List;
+
+import se.kth.swim.msg.net.NetMsg;
+
+/**
+ * Messages to the same next hop sent together in one envelope. Every message
+ * keeps its own header and is handled on its own by the receiver.
+ */
+public class Batch {
+	private final List<NetMsg<Object>> messages;
+
+	public Batch(List<NetMsg<Object>> messages) {
+		this.messages = messages;
+	}
+
+	public List<NetMsg<Object>> getMessages() {
+		return messages;
+	}
+}
@@ -0,0 +1,20 @@
+package se.kth.swim.nat.msg;
+
+import se.sics.p2ptoolbox.util.network.NatedAddress;
+
+/**
+ * Sent by a NAT node to the parents it dropped, with its address under the
+ * new parents. The old parents forward what they still receive for it for a
+ * short while.
+ */
+public class Handover {
+	private final NatedAddress newAddress;
+
+	public Handover(NatedAddress newAddress) {
+		this.newAddress = newAddress;
+	}
+
+	public NatedAddress getNewAddress() {
+		return newAddress;
+	}
+}
@@ -0,0 +1,24 @@
+package se.kth.swim.nat.msg;
+
+import java.util.List;
+
+import se.kth.swim.msg.net.NetMsg;
+import se.sics.kompics.network.Header;
+import se.sics.p2ptoolbox.util.network.NatedAddress;
+
+public class NetBatch extends NetMsg<Batch> {
+
+	public NetBatch(NatedAddress source, NatedAddress destination,
+			List<NetMsg<Object>> messages) {
+		super(source, destination, new Batch(messages));
+	}
+
+	public NetBatch(Header<NatedAddress> header, Batch content) {
+		super(header, content);
+	}
+
+	@Override
+	public NetMsg copyMessage(Header<NatedAddress> newHeader) {
+		return new NetBatch(newHeader, getContent());
+	}
+}
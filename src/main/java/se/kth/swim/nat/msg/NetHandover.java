@@ -0,0 +1,22 @@
+package se.kth.swim.nat.msg;
+
+import se.kth.swim.msg.net.NetMsg;
+import se.sics.kompics.network.Header;
+import se.sics.p2ptoolbox.util.network.NatedAddress;
+
+public class NetHandover extends NetMsg<Handover> {
+
+	public NetHandover(NatedAddress source, NatedAddress destination,
+			NatedAddress newAddress) {
+		super(source, destination, new Handover(newAddress));
+	}
+
+	public NetHandover(Header<NatedAddress> header, Handover content) {
+		super(header, content);
+	}
+
+	@Override
+	public NetMsg copyMessage(Header<NatedAddress> newHeader) {
+		return new NetHandover(newHeader, getContent());
+	}
+}
@@ -0,0 +1,17 @@
+package se.kth.swim.nat.msg;
+
+import se.kth.swim.msg.net.NetMsg;
+import se.sics.kompics.network.Header;
+import se.sics.p2ptoolbox.util.network.NatedAddress;
+
+public class NetPayload extends NetMsg<Payload> {
+
+	public NetPayload(Header<NatedAddress> header, Payload content) {
+		super(header, content);
+	}
+
+	@Override
+	public NetMsg copyMessage(Header<NatedAddress> newHeader) {
+		return new NetPayload(newHeader, getContent());
+	}
+}
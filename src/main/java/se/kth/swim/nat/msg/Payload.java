@@ -0,0 +1,27 @@
+package se.kth.swim.nat.msg;
+
+/**
+ * Content of a SWIM message already encoded by the
+ * {@link se.kth.swim.msg.net.SwimCodec}. Relays forward it as it is, only the
+ * receiver decodes it.
+ */
+public class Payload {
+	private final byte type;
+	private final byte[] bytes;
+
+	public Payload(byte type, byte[] bytes) {
+		this.type = type;
+		this.bytes = bytes;
+	}
+
+	public byte getType() {
+		return type;
+	}
+
+	/**
+	 * @return The encoded content, shared and never modified.
+	 */
+	public byte[] getBytes() {
+		return bytes;
+	}
+}
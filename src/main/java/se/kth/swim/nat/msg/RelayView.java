@@ -0,0 +1,22 @@
+package se.kth.swim.nat.msg;
+
+/**
+ * What an open node tells about itself in its Croupier descriptor, so that
+ * NAT nodes can prefer parents that relay for fewer children.
+ */
+public class RelayView {
+	private final int children;
+
+	public RelayView(int children) {
+		this.children = children;
+	}
+
+	public int getChildren() {
+		return children;
+	}
+
+	@Override
+	public String toString() {
+		return "children:" + children;
+	}
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * GVoD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.swim.simulation;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Set;
+
+import se.kth.swim.AggregatorComp;
+import se.kth.swim.HostComp;
+import se.kth.swim.NatTraversalConfig;
+import se.kth.swim.SwimConfig;
+import se.kth.swim.croupier.CroupierConfig;
+import se.kth.swim.croupier.CroupierSelectionPolicy;
+import se.kth.swim.scenario.NumberNodeBuilder;
+import se.sics.p2ptoolbox.simulator.cmd.OperationCmd;
+import se.sics.p2ptoolbox.simulator.cmd.impl.KillNodeCmd;
+import se.sics.p2ptoolbox.simulator.cmd.impl.SimulationResult;
+import se.sics.p2ptoolbox.simulator.cmd.impl.StartAggregatorCmd;
+import se.sics.p2ptoolbox.simulator.cmd.impl.StartNodeCmd;
+import se.sics.p2ptoolbox.simulator.dsl.SimulationScenario;
+import se.sics.p2ptoolbox.simulator.dsl.adaptor.Operation;
+import se.sics.p2ptoolbox.simulator.dsl.adaptor.Operation1;
+import se.sics.p2ptoolbox.simulator.dsl.distribution.ConstantDistribution;
+import se.sics.p2ptoolbox.simulator.dsl.distribution.extra.GenIntSequentialDistribution;
+import se.sics.p2ptoolbox.util.network.NatType;
+import se.sics.p2ptoolbox.util.network.NatedAddress;
+import se.sics.p2ptoolbox.util.network.impl.BasicAddress;
+import se.sics.p2ptoolbox.util.network.impl.BasicNatedAddress;
+
+/**
+ * 100 nodes, 20 of them behind a NAT, with 20 open nodes killed once the
+ * system is up. NAT nodes choose their parents from the public Croupier
+ * sample, so the sooner Croupier evicts the dead open nodes the sooner the
+ * parent replacements find live ones. One scenario per selection policy.
+ */
+public class Nodes100Nat20CroupierPolicies {
+	private static long seed;
+	private static InetAddress localHost;
+	private static NumberNodeBuilder nodeBuilder;
+
+	private static final Integer INFECTION_TIME = 60;
+	private static final Integer PIGGYBACK_SIZE = 70;
+
+	private static final Integer NUMBER_OF_TOTAL_NODES = 100;
+	private static final Integer NUMBER_OF_NAT_NODES = 20;
+	private static final Integer NUMBER_OF_OPEN_KILL = 20;
+
+	private static Integer[] concatKillId;
+
+	private static CroupierConfig croupierConfig;
+	private static SwimConfig swimConfig = new SwimConfig(INFECTION_TIME,
+			PIGGYBACK_SIZE);
+	private static NatTraversalConfig natConfig = new NatTraversalConfig()
+			.withSingleParentReplacement();
+	static {
+		try {
+			localHost = InetAddress.getByName("127.0.0.1");
+		} catch (UnknownHostException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	public static SimulationScenario random(final long seed) {
+		return scenario(seed, new CroupierConfig(10, 5, 2000, 1000));
+	}
+
+	public static SimulationScenario tail(final long seed) {
+		return scenario(seed, new CroupierConfig(10, 5, 2000, 1000,
+				CroupierSelectionPolicy.TAIL, 0));
+	}
+
+	public static SimulationScenario healer(final long seed) {
+		return scenario(seed, new CroupierConfig(10, 5, 2000, 1000,
+				CroupierSelectionPolicy.HEALER, 0));
+	}
+
+	/**
+	 * HEALER picking older peers more often rather than always the oldest,
+	 * so that nodes do not all shuffle with the same few peers.
+	 */
+	public static SimulationScenario healerSoftMax(final long seed) {
+		return scenario(seed, new CroupierConfig(10, 5, 2000, 1000,
+				CroupierSelectionPolicy.HEALER, 1));
+	}
+
+	static Operation1<StartAggregatorCmd, Integer> startAggregatorOp = new Operation1<StartAggregatorCmd, Integer>() {
+
+		public StartAggregatorCmd generate(final Integer nodeId) {
+			return new StartAggregatorCmd<AggregatorComp, NatedAddress>() {
+				private NatedAddress aggregatorAddress;
+
+				public Class getNodeComponentDefinition() {
+					return AggregatorComp.class;
+				}
+
+				public AggregatorComp.AggregatorInit getNodeComponentInit() {
+					aggregatorAddress = new BasicNatedAddress(new BasicAddress(
+							localHost, 23456, nodeId));
+
+					// Initialize here the dead nodes!
+					return new AggregatorComp.AggregatorInit(aggregatorAddress,
+							nodeBuilder.getSize(), concatKillId, 5000);
+				}
+
+				public NatedAddress getAddress() {
+					return aggregatorAddress;
+				}
+
+			};
+		}
+	};
+
+	static Operation1<StartNodeCmd, Integer> startOpenNodeOp = new Operation1<StartNodeCmd, Integer>() {
+
+		public StartNodeCmd generate(final Integer nodeId) {
+			return new StartNodeCmd<HostComp, NatedAddress>() {
+				private NatedAddress nodeAddress;
+
+				public Class getNodeComponentDefinition() {
+					return HostComp.class;
+				}
+
+				public HostComp.HostInit getNodeComponentInit(
+						NatedAddress aggregatorServer,
+						Set<NatedAddress> bootstrapNodes) {
+
+					// open address
+					nodeAddress = new BasicNatedAddress(new BasicAddress(
+							localHost, 12345, nodeId));
+					long nodeSeed = seed + nodeId;
+					return new HostComp.HostInit(nodeAddress, bootstrapNodes,
+							aggregatorServer, nodeSeed, croupierConfig,
+							swimConfig, natConfig);
+				}
+
+				public Integer getNodeId() {
+					return nodeId;
+				}
+
+				public NatedAddress getAddress() {
+					return nodeAddress;
+				}
+
+				public int bootstrapSize() {
+					return 5;
+				}
+
+			};
+		}
+	};
+
+	static Operation1<StartNodeCmd, Integer> startNatNodeOp = new Operation1<StartNodeCmd, Integer>() {
+
+		public StartNodeCmd generate(final Integer nodeId) {
+			return new StartNodeCmd<HostComp, NatedAddress>() {
+				private NatedAddress nodeAddress;
+
+				public Class getNodeComponentDefinition() {
+					return HostComp.class;
+				}
+
+				public HostComp.HostInit getNodeComponentInit(
+						NatedAddress aggregatorServer,
+						Set<NatedAddress> bootstrapNodes) {
+
+					// nated address
+					nodeAddress = new BasicNatedAddress(new BasicAddress(
+							localHost, 12345, nodeId), NatType.NAT,
+							bootstrapNodes);
+					long nodeSeed = seed + nodeId;
+					return new HostComp.HostInit(nodeAddress, bootstrapNodes,
+							aggregatorServer, nodeSeed, croupierConfig,
+							swimConfig, natConfig);
+				}
+
+				public Integer getNodeId() {
+					return nodeId;
+				}
+
+				public NatedAddress getAddress() {
+					return nodeAddress;
+				}
+
+				public int bootstrapSize() {
+					return 5;
+				}
+
+			};
+		}
+	};
+
+	static Operation1<KillNodeCmd, Integer> killNodeOp = new Operation1<KillNodeCmd, Integer>() {
+
+		public KillNodeCmd generate(final Integer nodeId) {
+			return new KillNodeCmd() {
+				public Integer getNodeId() {
+					return nodeId;
+				}
+			};
+		}
+
+	};
+
+	static Operation<SimulationResult> simulationResult = new Operation<SimulationResult>() {
+
+		public SimulationResult generate() {
+			return new SimulationResult() {
+
+				public void setSimulationResult(
+						OperationCmd.ValidationException failureCause) {
+					SwimSimulationResult.failureCause = failureCause;
+				}
+			};
+		}
+	};
+
+	private static SimulationScenario scenario(final long seed,
+			CroupierConfig croupierConfig) {
+		Nodes100Nat20CroupierPolicies.seed = seed;
+		Nodes100Nat20CroupierPolicies.croupierConfig = croupierConfig;
+		nodeBuilder = new NumberNodeBuilder(NUMBER_OF_TOTAL_NODES,
+				NUMBER_OF_NAT_NODES);
+		SimulationScenario scen = new SimulationScenario() {
+			{
+				StochasticProcess startAggregator = new StochasticProcess() {
+					{
+						eventInterArrivalTime(constant(1000));
+						raise(1, startAggregatorOp, new ConstantDistribution(
+								Integer.class, 0));
+					}
+				};
+
+				StochasticProcess startPeers = new StochasticProcess() {
+					{
+						eventInterArrivalTime(constant(1000));
+						raise(nodeBuilder.getOpenNodes().size(),
+								startOpenNodeOp,
+								new GenIntSequentialDistribution(nodeBuilder
+										.getOpenNodes().toArray(new Integer[nodeBuilder.getOpenNodes().size()])));
+
+						raise(nodeBuilder.getNatedNodes().size(),
+								startNatNodeOp,
+								new GenIntSequentialDistribution(nodeBuilder
+										.getNatedNodes().toArray(new Integer[nodeBuilder.getNatedNodes().size()])));
+					}
+				};
+
+				StochasticProcess killPeers = new StochasticProcess() {
+					{
+						eventInterArrivalTime(constant(1000));
+						Integer[] openIdToKill = nodeBuilder.getOpenNodes().subList(0, NUMBER_OF_OPEN_KILL).toArray(new Integer[NUMBER_OF_OPEN_KILL]);
+						raise(NUMBER_OF_OPEN_KILL, killNodeOp, new GenIntSequentialDistribution(openIdToKill));
+
+						concatKillId = openIdToKill;
+					}
+				};
+
+				StochasticProcess fetchSimulationResult = new StochasticProcess() {
+					{
+						eventInterArrivalTime(constant(1000));
+						raise(1, simulationResult);
+					}
+				};
+
+				startAggregator.start();
+				startPeers.startAfterTerminationOf(1000, startAggregator);
+				killPeers.startAfterTerminationOf(30 * 1000, startPeers);
+				fetchSimulationResult.startAfterTerminationOf(300 * 1000,
+						startPeers);
+				terminateAfterTerminationOf(1000000, fetchSimulationResult);
+
+			}
+		};
+
+		scen.setSeed(seed);
+
+		return scen;
+	}
+}
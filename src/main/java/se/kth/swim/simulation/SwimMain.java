@@ -47,6 +47,15 @@ public class SwimMain {
         //LauncherComp.scenario = Nodes300NAT50Deadlinks30.scenario(1234L);
         //LauncherComp.scenario = Nodes85Nat20Kill12Nat5Open.scenario(1234L);
         //LauncherComp.scenario = Nodes300Nat30Kill8Nat15Open.scenario(1234L);
+        //LauncherComp.scenario = Nodes100Nat40NatModes.batching(1234L);
+        //LauncherComp.scenario = Nodes100Nat40NatModes.opaque(1234L);
+        //LauncherComp.scenario = Nodes100Nat40NatModes.singleReplacement(1234L);
+        //LauncherComp.scenario = Nodes100Nat40NatModes.hedged(1234L);
+        //LauncherComp.scenario = Nodes100Nat40NatModes.direct(1234L);
+        //LauncherComp.scenario = Nodes100Nat40NatModes.opaqueWithAllModes(1234L);
+        //LauncherComp.scenario = Nodes100Nat40NatModes.primitiveMembership(1234L);
+        //LauncherComp.scenario = Nodes100Nat20CroupierPolicies.tail(1234L);
+        //LauncherComp.scenario = Nodes100Nat20CroupierPolicies.healer(1234L);
         LauncherComp.scenario = Nodes85Nat20Kill12Nat5Open.scenario(1234L);
         
         try {
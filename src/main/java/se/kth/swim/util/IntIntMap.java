@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * GVoD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.swim.util;
+
+/**
+ * Open addressing hash map from int keys to int values, with linear probing
+ * and no boxing. Keys are never removed.
+ */
+public class IntIntMap {
+	private int[] keys;
+	private int[] values;
+	private boolean[] used;
+	private int size;
+	private final int missingValue;
+
+	/**
+	 * @param capacity
+	 *            Expected number of keys.
+	 * @param missingValue
+	 *            Value returned by {@link #get(int)} for absent keys.
+	 */
+	public IntIntMap(int capacity, int missingValue) {
+		int length = Integer.highestOneBit(Math.max(4, capacity * 2 - 1)) << 1;
+		this.keys = new int[length];
+		this.values = new int[length];
+		this.used = new boolean[length];
+		this.size = 0;
+		this.missingValue = missingValue;
+	}
+
+	public int get(int key) {
+		int index = indexOf(key);
+		return used[index] ? values[index] : missingValue;
+	}
+
+	public boolean containsKey(int key) {
+		return used[indexOf(key)];
+	}
+
+	public void put(int key, int value) {
+		int index = indexOf(key);
+		if (!used[index]) {
+			if ((size + 1) * 2 > keys.length) {
+				grow();
+				index = indexOf(key);
+			}
+			used[index] = true;
+			keys[index] = key;
+			size++;
+		}
+		values[index] = value;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return Index of the key, or of the empty slot where it would go.
+	 */
+	private int indexOf(int key) {
+		int mask = keys.length - 1;
+		int index = (key * 0x9E3779B9 >>> 16 ^ key * 0x9E3779B9) & mask;
+		while (used[index] && keys[index] != key) {
+			index = (index + 1) & mask;
+		}
+		return index;
+	}
+
+	private void grow() {
+		int[] oldKeys = keys;
+		int[] oldValues = values;
+		boolean[] oldUsed = used;
+		keys = new int[oldKeys.length * 2];
+		values = new int[oldKeys.length * 2];
+		used = new boolean[oldKeys.length * 2];
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldUsed[i]) {
+				int index = indexOf(oldKeys[i]);
+				used[index] = true;
+				keys[index] = oldKeys[i];
+				values[index] = oldValues[i];
+			}
+		}
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * GVoD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.swim.util;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Random;
+import java.util.function.Supplier;
+
+import se.kth.swim.Membership;
+import se.kth.swim.MembershipTable;
+import se.kth.swim.NodeState;
+import se.kth.swim.Peer;
+import se.kth.swim.PrimitiveMembershipTable;
+import se.sics.p2ptoolbox.util.network.NatedAddress;
+import se.sics.p2ptoolbox.util.network.impl.BasicAddress;
+import se.sics.p2ptoolbox.util.network.impl.BasicNatedAddress;
+
+/**
+ * Rough heap footprint of the two {@link Membership} layouts. The addresses
+ * are created up front and shared by both, so only the view itself is
+ * measured. Usage: MembershipFootprint [members]
+ */
+public class MembershipFootprint {
+	public static void main(String[] args) throws UnknownHostException {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+
+		InetAddress ip = InetAddress.getByName("127.0.0.1");
+		NatedAddress[] addresses = new NatedAddress[n];
+		for (int i = 0; i < n; i++) {
+			addresses[i] = new BasicNatedAddress(new BasicAddress(ip, 12345,
+					i));
+		}
+
+		long objects = measure(() -> new MembershipTable(0, new Random(1)),
+				addresses);
+		long primitive = measure(() -> new PrimitiveMembershipTable(0,
+				new Random(1), n), addresses);
+
+		System.out.println("members\t\tobjects\t\tprimitive");
+		System.out.println(n + "\t\t" + objects / n + " B\t\t" + primitive
+				/ n + " B");
+	}
+
+	private static long measure(Supplier<Membership> table,
+			NatedAddress[] addresses) {
+		long before = usedHeap();
+		Membership members = table.get();
+		for (NatedAddress address : addresses) {
+			members.put(new Peer(address, NodeState.ALIVE));
+		}
+		long after = usedHeap();
+
+		// Keep the view reachable until it has been measured
+		if (members.size() != addresses.length) {
+			throw new IllegalStateException("Unexpected view size");
+		}
+		return after - before;
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
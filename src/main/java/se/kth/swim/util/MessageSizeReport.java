@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * GVoD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.swim.util;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import se.kth.swim.NodeState;
+import se.kth.swim.Peer;
+import se.kth.swim.SwimComp;
+import se.kth.swim.msg.IndirectPing;
+import se.kth.swim.msg.IndirectPong;
+import se.kth.swim.msg.StartIndirectPing;
+import se.kth.swim.msg.Status;
+import se.kth.swim.msg.StopIndirectPing;
+import se.kth.swim.msg.net.NetIndirectPing;
+import se.kth.swim.msg.net.NetIndirectPong;
+import se.kth.swim.msg.net.NetMsg;
+import se.kth.swim.msg.net.NetPing;
+import se.kth.swim.msg.net.NetPong;
+import se.kth.swim.msg.net.NetStartIndirectPing;
+import se.kth.swim.msg.net.NetStatus;
+import se.kth.swim.msg.net.NetStopIndirectPing;
+import se.kth.swim.msg.net.PiggybackBudget;
+import se.kth.swim.msg.net.SwimCodec;
+import se.sics.kompics.network.Transport;
+import se.sics.p2ptoolbox.util.network.NatType;
+import se.sics.p2ptoolbox.util.network.NatedAddress;
+import se.sics.p2ptoolbox.util.network.impl.BasicAddress;
+import se.sics.p2ptoolbox.util.network.impl.BasicHeader;
+import se.sics.p2ptoolbox.util.network.impl.BasicNatedAddress;
+import se.sics.p2ptoolbox.util.network.impl.SourceHeader;
+
+/**
+ * Bytes per message of the {@link SwimCodec}, for piggybacks of open and of
+ * NAT peers, and of NAT peers half of them suspected. It also shows how many
+ * of those peers fit in a datagram with the default byte budget. Every
+ * message is also decoded and encoded again to check that the round trip
+ * gives back the same bytes. Usage: MessageSizeReport [piggyback size]
+ * [parents per NAT node]
+ */
+public class MessageSizeReport {
+	private static InetAddress ip;
+	// Every address created, the receiver is assumed to know all of them
+	private static final Map<Integer, NatedAddress> known = new HashMap<>();
+
+	public static void main(String[] args) throws UnknownHostException {
+		int piggybackSize = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+		int parentsSize = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		ip = InetAddress.getByName("193.10.64.1");
+
+		List<NatedAddress> parents = new ArrayList<>();
+		for (int i = 0; i < parentsSize; i++) {
+			parents.add(open(1000 + i));
+		}
+		NatedAddress src = open(1);
+		NatedAddress dst = nated(2, parents);
+		Peer peer = new Peer(nated(3, parents), NodeState.SUSPECTED, 4);
+
+		List<Peer> openPeers = new ArrayList<>();
+		List<Peer> natedPeers = new ArrayList<>();
+		List<Peer> mixedPeers = new ArrayList<>();
+		for (int i = 0; i < piggybackSize; i++) {
+			openPeers.add(new Peer(open(10 + i), NodeState.ALIVE, i));
+			natedPeers.add(new Peer(nated(10 + i, parents), NodeState.ALIVE, i));
+			mixedPeers.add(new Peer(nated(10 + i, parents),
+					i % 2 == 0 ? NodeState.ALIVE : NodeState.SUSPECTED, i));
+		}
+
+		UUID uuid = UUID.randomUUID();
+		System.out.println("message\t\t\tbytes");
+		report("PING open", new NetPing(src, dst, openPeers, uuid, 7, 1));
+		report("PING nated", new NetPing(src, dst, natedPeers, uuid, 7, 1));
+		report("PONG open", new NetPong(src, dst, openPeers, uuid, 7, 1));
+		report("PONG nated", new NetPong(src, dst, natedPeers, uuid, 7, 1));
+		report("PONG mixed", new NetPong(src, dst, mixedPeers, uuid, 7, 1));
+		report("START_IND_PING", new NetStartIndirectPing(src, dst,
+				new StartIndirectPing(peer, peer, uuid, 7, 1)));
+		report("IND_PING", new NetIndirectPing(src, dst, new IndirectPing(
+				peer, uuid, 7, 1)));
+		report("IND_PONG", new NetIndirectPong(src, dst, new IndirectPong(
+				peer, peer, uuid, 7, 1)));
+		report("STOP_IND_PING", new NetStopIndirectPing(src, dst,
+				new StopIndirectPing(peer, uuid, 7, 1)));
+		report("STATUS", new NetStatus(src, dst, new Status(1, 2, 3, 4)));
+
+		// Piggybacks packed in a datagram, relayed through a parent
+		for (List<Peer> peers : Arrays.asList(openPeers, natedPeers,
+				mixedPeers)) {
+			PiggybackBudget budget = new PiggybackBudget(
+					SwimCodec.piggybackBudget(SwimComp.DEFAULT_DATAGRAM_BYTES,
+							src, dst));
+			List<Peer> packed = new ArrayList<>();
+			for (Peer candidate : peers) {
+				if (budget.tryAdd(candidate)) {
+					packed.add(candidate);
+				}
+			}
+			NetMsg<?> ping = new NetPing(src, dst, packed, uuid, 7, 1)
+					.copyMessage(new SourceHeader<NatedAddress>(
+							new BasicHeader<NatedAddress>(src, dst,
+									Transport.UDP), parents.get(0)));
+			int bytes = SwimCodec.encodedSize(ping);
+			if (bytes > SwimComp.DEFAULT_DATAGRAM_BYTES) {
+				throw new IllegalStateException("Packed PING too large");
+			}
+			System.out.println(String.format("%d/%d peers in %d bytes",
+					packed.size(), peers.size(), bytes));
+		}
+	}
+
+	private static void report(String name, NetMsg<?> msg) {
+		byte[] bytes = SwimCodec.toBytes(msg);
+		byte[] again = SwimCodec.toBytes(SwimCodec.fromBytes(bytes,
+				known::get));
+		if (!Arrays.equals(bytes, again)) {
+			throw new IllegalStateException(name + " does not round trip");
+		}
+		System.out.println(String.format("%-16s\t%d", name, bytes.length));
+	}
+
+	private static NatedAddress open(int id) {
+		NatedAddress address = new BasicNatedAddress(new BasicAddress(ip,
+				12345, id));
+		known.put(id, address);
+		return address;
+	}
+
+	private static NatedAddress nated(int id, List<NatedAddress> parents) {
+		Set<NatedAddress> set = new HashSet<>(parents);
+		NatedAddress address = new BasicNatedAddress(new BasicAddress(ip,
+				12345, id), NatType.NAT, set);
+		known.put(id, address);
+		return address;
+	}
+}
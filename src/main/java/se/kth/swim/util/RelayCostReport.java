@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * GVoD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.swim.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.UnaryOperator;
+
+import se.kth.swim.NodeState;
+import se.kth.swim.Peer;
+import se.kth.swim.msg.net.NetMsg;
+import se.kth.swim.msg.net.NetPing;
+import se.kth.swim.msg.net.SwimCodec;
+import se.kth.swim.nat.msg.NetPayload;
+import se.kth.swim.nat.msg.Payload;
+import se.sics.kompics.network.Header;
+import se.sics.kompics.network.Transport;
+import se.sics.p2ptoolbox.util.network.NatType;
+import se.sics.p2ptoolbox.util.network.NatedAddress;
+import se.sics.p2ptoolbox.util.network.impl.BasicAddress;
+import se.sics.p2ptoolbox.util.network.impl.BasicHeader;
+import se.sics.p2ptoolbox.util.network.impl.BasicNatedAddress;
+import se.sics.p2ptoolbox.util.network.impl.RelayHeader;
+import se.sics.p2ptoolbox.util.network.impl.SourceHeader;
+
+/**
+ * Cost of the three steps of a PING relayed to a NAT node, as done by
+ * NatTraversalComp with and without opaque relaying: the sender wraps it
+ * for the parent, the parent swaps the header and the child restores the
+ * original header. Every step allocates a new message, the opaque mode
+ * adds the encoding on the sender and the decoding on the child. Time and
+ * bytes allocated are averaged per message, allocation is only reported on
+ * JVMs that measure it. Usage: RelayCostReport [piggyback size]
+ * [messages]
+ */
+public class RelayCostReport {
+	private static final Map<Integer, NatedAddress> known = new HashMap<>();
+	private static Object sink;
+
+	public static void main(String[] args) throws UnknownHostException {
+		int piggybackSize = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		int messages = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+		InetAddress ip = InetAddress.getByName("193.10.64.1");
+
+		List<NatedAddress> parents = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			parents.add(remember(new BasicNatedAddress(new BasicAddress(ip,
+					12345, 1000 + i))));
+		}
+		NatedAddress src = remember(new BasicNatedAddress(new BasicAddress(
+				ip, 12345, 1)));
+		NatedAddress dst = nated(ip, 2, parents);
+		List<Peer> piggyback = new ArrayList<>();
+		for (int i = 0; i < piggybackSize; i++) {
+			piggyback.add(new Peer(nated(ip, 10 + i, parents),
+					NodeState.ALIVE, i));
+		}
+		NetMsg<Object> ping = (NetMsg) new NetPing(src, dst, piggyback,
+				UUID.randomUUID(), 7, 1);
+
+		SourceHeader<NatedAddress> toParent = new SourceHeader<NatedAddress>(
+				new BasicHeader<NatedAddress>(src, dst, Transport.UDP),
+				parents.get(0));
+		RelayHeader<NatedAddress> toChild = toParent.getRelayHeader();
+		Header<NatedAddress> original = toChild.getActualHeader();
+
+		NetMsg<Object> plainAtParent = ping.copyMessage(toParent);
+		NetMsg<Object> plainAtChild = plainAtParent.copyMessage(toChild);
+		NetMsg<Object> opaqueAtParent = (NetMsg) new NetPayload(toParent,
+				SwimCodec.toPayload(ping));
+		NetMsg<Object> opaqueAtChild = opaqueAtParent.copyMessage(toChild);
+
+		System.out.println("step\t\tmode\tns/msg\tB/msg");
+		for (int pass = 0; pass < 2; pass++) {
+			// The first pass only warms up the JIT
+			boolean print = pass == 1;
+			measure(print, "sender", "plain", messages,
+					x -> x.copyMessage(toParent), ping);
+			measure(print, "sender", "opaque", messages,
+					x -> (NetMsg) new NetPayload(toParent,
+							SwimCodec.toPayload(x)), ping);
+			measure(print, "relay", "plain", messages,
+					x -> x.copyMessage(toChild), plainAtParent);
+			measure(print, "relay", "opaque", messages,
+					x -> x.copyMessage(toChild), opaqueAtParent);
+			measure(print, "child", "plain", messages,
+					x -> x.copyMessage(original), plainAtChild);
+			measure(print, "child", "opaque", messages,
+					x -> (NetMsg) SwimCodec.fromPayload(original,
+							(Payload) x.getContent(), known::get),
+					opaqueAtChild);
+		}
+	}
+
+	private static void measure(boolean print, String step, String mode,
+			int messages, UnaryOperator<NetMsg<Object>> hop,
+			NetMsg<Object> msg) {
+		long allocated = allocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < messages; i++) {
+			sink = hop.apply(msg);
+		}
+		long time = System.nanoTime() - start;
+		allocated = allocatedBytes() - allocated;
+		if (print) {
+			System.out.println(String.format("%-8s\t%s\t%d\t%s", step, mode,
+					time / messages, allocated < 0 ? "-" : String
+							.valueOf(allocated / messages)));
+		}
+	}
+
+	/**
+	 * @return Bytes allocated so far by this thread, negative if the JVM
+	 *         does not tell.
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads)
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	private static NatedAddress nated(InetAddress ip, int id,
+			List<NatedAddress> parents) {
+		return remember(new BasicNatedAddress(new BasicAddress(ip, 12345, id),
+				NatType.NAT, new HashSet<>(parents)));
+	}
+
+	private static NatedAddress remember(NatedAddress address) {
+		known.put(address.getId(), address);
+		return address;
+	}
+}
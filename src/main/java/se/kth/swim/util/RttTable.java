@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * GVoD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.swim.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Smoothed round trip time to other nodes, updated with every measured
+ * sample as srtt = 7/8 srtt + 1/8 sample, the same as TCP.
+ */
+public class RttTable {
+	private final Map<Integer, Double> smoothed;
+
+	public RttTable() {
+		this.smoothed = new HashMap<>();
+	}
+
+	public void sample(int id, long rtt) {
+		Double srtt = smoothed.get(id);
+		smoothed.put(id, srtt == null ? rtt : srtt + (rtt - srtt) / 8);
+	}
+
+	/**
+	 * @return The smoothed round trip time in milliseconds, or the default
+	 *         value if the node was never measured.
+	 */
+	public double get(int id, double unknown) {
+		Double srtt = smoothed.get(id);
+		return srtt == null ? unknown : srtt;
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * GVoD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.swim.util;
+
+import java.util.Arrays;
+
+/**
+ * Highest message counter seen from every sender. An {@link IntIntMap} gives
+ * the slot of every sender in dense arrays, so there is no boxing. Besides
+ * the highest counter, a bitmap of the {@value #WINDOW} counters below it is
+ * kept, so that messages reordered by the network are still accepted once
+ * while duplicates are dropped. Counters are only compared within the same
+ * epoch of the sender, a sender that restarts with a new epoch starts over.
+ * Late messages from the epoch before are dropped.
+ */
+public class SequenceTable {
+	public static final int WINDOW = 64;
+
+	private final IntIntMap slots;
+	private int[] epochs;
+	private int[] previousEpochs;
+	private int[] highest;
+	private long[] seen;
+
+	/**
+	 * @param capacity
+	 *            Expected number of senders.
+	 */
+	public SequenceTable(int capacity) {
+		this.slots = new IntIntMap(capacity, -1);
+		this.epochs = new int[Math.max(4, capacity)];
+		this.previousEpochs = new int[epochs.length];
+		this.highest = new int[epochs.length];
+		this.seen = new long[epochs.length];
+	}
+
+	/**
+	 * Checks the counter of a message against what we have seen from its
+	 * sender and records it.
+	 * 
+	 * @param sender
+	 *            Id of the sender.
+	 * @param epoch
+	 *            Epoch of the sender when it sent the message.
+	 * @param counter
+	 *            Counter of the message.
+	 * @return True if the sender is new, it has a new epoch, the counter is
+	 *         the highest seen so far or it is a not yet seen counter inside
+	 *         the window. False for duplicates, counters older than the
+	 *         window and messages from the previous epoch.
+	 */
+	public boolean accept(int sender, int epoch, int counter) {
+		int slot = slots.get(sender);
+		if (slot == -1) {
+			slot = slots.size();
+			if (slot == epochs.length) {
+				epochs = Arrays.copyOf(epochs, slot * 2);
+				previousEpochs = Arrays.copyOf(previousEpochs, slot * 2);
+				highest = Arrays.copyOf(highest, slot * 2);
+				seen = Arrays.copyOf(seen, slot * 2);
+			}
+			slots.put(sender, slot);
+			previousEpochs[slot] = epoch;
+			return start(slot, epoch, counter);
+		}
+		if (epochs[slot] != epoch) {
+			if (previousEpochs[slot] == epoch) {
+				// Sent before the restart, delayed by the network
+				return false;
+			}
+			// Restarted, what we saw from it before says nothing now
+			previousEpochs[slot] = epochs[slot];
+			return start(slot, epoch, counter);
+		}
+
+		int shift = counter - highest[slot];
+		if (shift > 0) {
+			// Bit i stands for counter highest - i
+			seen[slot] = shift < WINDOW ? seen[slot] << shift | 1L : 1L;
+			highest[slot] = counter;
+			return true;
+		}
+
+		int age = -shift;
+		if (age >= WINDOW || (seen[slot] & 1L << age) != 0) {
+			return false;
+		}
+		seen[slot] |= 1L << age;
+		return true;
+	}
+
+	private boolean start(int slot, int epoch, int counter) {
+		epochs[slot] = epoch;
+		highest[slot] = counter;
+		seen[slot] = 1L;
+		return true;
+	}
+
+	/**
+	 * @return The highest counter seen from the sender in its last epoch or
+	 *         {@link Integer#MIN_VALUE} if we have never heard from it.
+	 */
+	public int getHighest(int sender) {
+		int slot = slots.get(sender);
+		return slot == -1 ? Integer.MIN_VALUE : highest[slot];
+	}
+
+	public int size() {
+		return slots.size();
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * GVoD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.swim;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import se.kth.swim.msg.net.PiggybackBudget;
+import se.sics.p2ptoolbox.util.network.NatedAddress;
+
+public class DisseminationQueueTest {
+	private TestAddresses addresses;
+	private DisseminationQueue queue;
+
+	@Before
+	public void setUp() {
+		addresses = new TestAddresses();
+		queue = new DisseminationQueue();
+	}
+
+	@Test
+	public void pollsLeastInfectedFirstInArrivalOrder() {
+		Member old = member(addresses.open(1), 2);
+		Member first = member(addresses.open(2), 0);
+		Member second = member(addresses.open(3), 0);
+		Member middle = member(addresses.open(4), 1);
+
+		assertEquals(ids(first, second, middle), ids(queue.poll(3, 10, null)));
+		assertEquals(1, (int) first.getInfectionTime());
+		assertEquals(2, (int) middle.getInfectionTime());
+		assertEquals(2, (int) old.getInfectionTime());
+
+		// The polled members went to the back of their new bucket
+		assertEquals(ids(first, second, old), ids(queue.poll(3, 10, null)));
+	}
+
+	@Test
+	public void skipsMembersInfectedTooOften() {
+		member(addresses.open(1), 3);
+		Member fresh = member(addresses.open(2), 1);
+		assertEquals(ids(fresh), ids(queue.poll(5, 2, null)));
+		assertEquals(ids(fresh), ids(queue.poll(5, 2, null)));
+		assertTrue(queue.poll(5, 2, null).isEmpty());
+	}
+
+	@Test
+	public void removedAndResetMembersMove() {
+		Member a = member(addresses.open(1), 0);
+		Member b = member(addresses.open(2), 0);
+		Member c = member(addresses.open(3), 4);
+		queue.remove(a);
+		queue.resetInfectionTime(c);
+		assertEquals(ids(b, c), ids(queue.poll(5, 10, null)));
+	}
+
+	@Test
+	public void budgetSkipsMembersThatDoNotFit() {
+		int openCost = cost(new Peer(addresses.open(1), NodeState.ALIVE, 1));
+		Member big = member(addresses.nated(1, addresses.parents(3)), 0);
+		Member small = member(addresses.open(2), 0);
+		Member other = member(addresses.open(3), 0);
+		Member last = member(addresses.open(4), 1);
+
+		// Room for two open peers but not for the nated one and its parents
+		PiggybackBudget budget = new PiggybackBudget(2 + 2 * openCost);
+		assertEquals(ids(small, other), ids(queue.poll(5, 10, budget)));
+		assertTrue(budget.getUsed() <= 2 + 2 * openCost);
+
+		// Skipped members keep their infection time and go first next time
+		assertEquals(0, (int) big.getInfectionTime());
+		assertEquals(1, (int) last.getInfectionTime());
+		assertEquals(ids(big, last, small, other), ids(queue.poll(5, 10,
+				new PiggybackBudget(1400))));
+	}
+
+	@Test
+	public void fullBudgetStopsTheScan() {
+		for (int i = 0; i < 10; i++) {
+			member(addresses.open(i), 0);
+		}
+		PiggybackBudget budget = new PiggybackBudget(2);
+		assertTrue(queue.poll(10, 10, budget).isEmpty());
+		assertEquals(2, budget.getUsed());
+	}
+
+	private Member member(NatedAddress node, int infectionTime) {
+		Member member = new Member(new Peer(node, NodeState.ALIVE, 1));
+		member.setInfectionTime(infectionTime);
+		queue.add(member);
+		return member;
+	}
+
+	private static int cost(Peer peer) {
+		PiggybackBudget budget = new PiggybackBudget(Integer.MAX_VALUE);
+		budget.tryAdd(peer);
+		return budget.getUsed() - 2;
+	}
+
+	private static List<Integer> ids(Member... members) {
+		List<Integer> ids = new ArrayList<>();
+		for (Member member : members) {
+			ids.add(member.getPeer().getNode().getId());
+		}
+		return ids;
+	}
+
+	private static List<Integer> ids(List<Peer> peers) {
+		List<Integer> ids = new ArrayList<>();
+		for (Peer peer : peers) {
+			ids.add(peer.getNode().getId());
+		}
+		return ids;
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * GVoD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.swim;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import se.sics.p2ptoolbox.util.network.NatedAddress;
+
+public class NatTraversalCompTest {
+	private TestAddresses addresses;
+	private List<NatedAddress> parents;
+
+	@Before
+	public void setUp() {
+		addresses = new TestAddresses();
+		parents = addresses.parents(5);
+	}
+
+	@Test
+	public void announcesWhenAnAdvertisedParentIsDropped() {
+		Set<NatedAddress> advertised = set(0, 1, 2);
+		assertTrue(NatTraversalComp.dropsAdvertised(advertised, set(0, 2, 3)));
+		assertFalse(NatTraversalComp.dropsAdvertised(advertised, set(0, 1, 2)));
+	}
+
+	@Test
+	public void replacesParentsPeersNeverHeardOfSilently() {
+		// Parent 3 was added without announcement, then it died
+		Set<NatedAddress> advertised = set(0, 1, 2);
+		assertFalse(NatTraversalComp.dropsAdvertised(advertised,
+				set(0, 1, 2, 3)));
+		assertFalse(NatTraversalComp.dropsAdvertised(advertised,
+				set(0, 1, 2, 4)));
+	}
+
+	@Test
+	public void peersStopRelayingThroughTheDroppedParent() {
+		NatedAddress before = addresses.nated(1, parents.subList(0, 3));
+		NatedAddress after = addresses.nated(1, set(0, 2, 3));
+		Membership peer = new MembershipTable(2, new Random(0));
+		peer.put(new Peer(addresses.open(2), NodeState.ALIVE, 0));
+		peer.put(new Peer(before, NodeState.ALIVE, 0));
+
+		// The new address with the same incarnation is not taken
+		PeerExchangeSelection.merge(peer.getPeer(2), peer,
+				Collections.singletonList(new Peer(after, NodeState.ALIVE, 0)));
+		assertEquals(before.getParents(), peer.getPeer(1).getNode()
+				.getParents());
+
+		// Announced with a new incarnation it replaces the old one
+		PeerExchangeSelection.merge(peer.getPeer(2), peer,
+				Collections.singletonList(new Peer(after, NodeState.ALIVE, 1)));
+		assertFalse(peer.getPeer(1).getNode().getParents()
+				.contains(parents.get(1)));
+	}
+
+	private Set<NatedAddress> set(int... indexes) {
+		Set<NatedAddress> set = new HashSet<>();
+		for (int i : indexes) {
+			set.add(parents.get(i));
+		}
+		return set;
+	}
+}
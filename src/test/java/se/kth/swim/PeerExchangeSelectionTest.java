@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * GVoD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.swim;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Merge of a received piggyback into the membership list.
+ */
+public class PeerExchangeSelectionTest {
+	private static final int SELF = 1;
+	private static final int OTHER = 2;
+
+	private TestAddresses addresses;
+	private Peer self;
+	private Membership members;
+
+	@Before
+	public void setUp() {
+		addresses = new TestAddresses();
+		self = new Peer(addresses.open(SELF), NodeState.ALIVE, 3);
+		members = new MembershipTable(SELF, new Random(0));
+		members.put(self);
+	}
+
+	@Test
+	public void aliveNeedsALargerIncarnation() {
+		for (NodeState local : NodeState.values()) {
+			assertMerged(local, 2, NodeState.ALIVE, 1, local, 2);
+			assertMerged(local, 2, NodeState.ALIVE, 2, local, 2);
+			assertMerged(local, 2, NodeState.ALIVE, 3, NodeState.ALIVE, 3);
+		}
+	}
+
+	@Test
+	public void suspectedOverridesAliveOfTheSameIncarnation() {
+		assertMerged(NodeState.ALIVE, 2, NodeState.SUSPECTED, 1,
+				NodeState.ALIVE, 2);
+		assertMerged(NodeState.ALIVE, 2, NodeState.SUSPECTED, 2,
+				NodeState.SUSPECTED, 2);
+		assertMerged(NodeState.ALIVE, 2, NodeState.SUSPECTED, 3,
+				NodeState.SUSPECTED, 3);
+
+		assertMerged(NodeState.SUSPECTED, 2, NodeState.SUSPECTED, 2,
+				NodeState.SUSPECTED, 2);
+		assertMerged(NodeState.SUSPECTED, 2, NodeState.SUSPECTED, 3,
+				NodeState.SUSPECTED, 3);
+
+		// A dead member is not suspected back
+		assertMerged(NodeState.DEAD, 2, NodeState.SUSPECTED, 3,
+				NodeState.DEAD, 2);
+	}
+
+	@Test
+	public void deadOverridesAnyIncarnation() {
+		assertMerged(NodeState.ALIVE, 2, NodeState.DEAD, 1,
+				NodeState.DEAD, 1);
+		assertMerged(NodeState.SUSPECTED, 2, NodeState.DEAD, 3,
+				NodeState.DEAD, 3);
+		assertMerged(NodeState.DEAD, 2, NodeState.DEAD, 3,
+				NodeState.DEAD, 2);
+	}
+
+	@Test
+	public void unknownMembersAreAdded() {
+		merge(peer(OTHER, NodeState.SUSPECTED, 4));
+		assertEquals(NodeState.SUSPECTED, members.getState(OTHER));
+		assertEquals(4, members.getIncarnation(OTHER));
+	}
+
+	@Test
+	public void duplicatesInOnePiggybackDoNotDependOnTheirOrder() {
+		// Applied one after the other, the last of these two would win
+		assertMergedInAnyOrder(NodeState.ALIVE, 1, NodeState.ALIVE, 5,
+				peer(OTHER, NodeState.DEAD, 1),
+				peer(OTHER, NodeState.ALIVE, 5));
+		// The larger incarnation first, then the later state
+		assertMergedInAnyOrder(NodeState.ALIVE, 1, NodeState.SUSPECTED, 5,
+				peer(OTHER, NodeState.DEAD, 1),
+				peer(OTHER, NodeState.ALIVE, 5),
+				peer(OTHER, NodeState.SUSPECTED, 5),
+				peer(OTHER, NodeState.ALIVE, 5));
+		// The winner still has to override the local information
+		assertMergedInAnyOrder(NodeState.ALIVE, 6, NodeState.ALIVE, 6,
+				peer(OTHER, NodeState.SUSPECTED, 5),
+				peer(OTHER, NodeState.ALIVE, 4));
+	}
+
+	@Test
+	public void refutesWithAnIncarnationLargerThanReceived() {
+		merge(peer(SELF, NodeState.SUSPECTED, 5));
+		assertSelf(6);
+
+		merge(peer(SELF, NodeState.DEAD, 6));
+		assertSelf(7);
+	}
+
+	@Test
+	public void refutationNeverGoesBackToAnOlderIncarnation() {
+		merge(peer(SELF, NodeState.SUSPECTED, 1));
+		assertSelf(3);
+
+		// An alive entry, even a newer one, needs no refutation
+		merge(peer(SELF, NodeState.ALIVE, 9));
+		assertSelf(3);
+	}
+
+	@Test
+	public void refutesTheNewestSuspicionOfAPiggyback() {
+		merge(peer(SELF, NodeState.SUSPECTED, 7),
+				peer(SELF, NodeState.SUSPECTED, 4));
+		assertSelf(8);
+
+		setUp();
+		merge(peer(SELF, NodeState.SUSPECTED, 4),
+				peer(SELF, NodeState.SUSPECTED, 7));
+		assertSelf(8);
+	}
+
+	private void assertMerged(NodeState localState, int localIncarnation,
+			NodeState receivedState, int receivedIncarnation,
+			NodeState expectedState, int expectedIncarnation) {
+		setUp();
+		members.put(peer(OTHER, localState, localIncarnation));
+		merge(peer(OTHER, receivedState, receivedIncarnation));
+		assertEquals(expectedState, members.getState(OTHER));
+		assertEquals(expectedIncarnation, members.getIncarnation(OTHER));
+	}
+
+	private void assertMergedInAnyOrder(NodeState localState,
+			int localIncarnation, NodeState expectedState,
+			int expectedIncarnation, Peer... piggyback) {
+		List<Peer> received = new ArrayList<Peer>(Arrays.asList(piggyback));
+		Random rand = new Random(0);
+		for (int i = 0; i < 20; i++) {
+			Collections.shuffle(received, rand);
+			setUp();
+			members.put(peer(OTHER, localState, localIncarnation));
+			PeerExchangeSelection.merge(self, members, received);
+			assertEquals(expectedState, members.getState(OTHER));
+			assertEquals(expectedIncarnation, members.getIncarnation(OTHER));
+		}
+	}
+
+	private void assertSelf(int incarnation) {
+		assertEquals(NodeState.ALIVE, members.getState(SELF));
+		assertEquals(incarnation, members.getIncarnation(SELF));
+		assertEquals(incarnation, self.getIncarnation());
+	}
+
+	private void merge(Peer... piggyback) {
+		PeerExchangeSelection.merge(self, members, Arrays.asList(piggyback));
+	}
+
+	private Peer peer(int id, NodeState state, int incarnation) {
+		return new Peer(addresses.open(id), state, incarnation);
+	}
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * GVoD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.swim;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * The same sequences of operations on a {@link MembershipTable} and a
+ * {@link PrimitiveMembershipTable} give the same view. The probe order and
+ * the samples are random in both, they are checked for validity only.
+ */
+public class PrimitiveMembershipTableTest {
+	private static final int SELF = 0;
+	private static final int IDS = 40;
+	private static final int OPERATIONS = 5000;
+	private static final NodeState[] STATES = NodeState.values();
+
+	private final TestAddresses addresses = new TestAddresses();
+
+	@Test
+	public void behavesAsMembershipTable() {
+		for (long seed = 0; seed < 10; seed++) {
+			// A small capacity so that the primitive table grows
+			run(new Random(seed), new MembershipTable(SELF, new Random(seed)),
+					new PrimitiveMembershipTable(SELF, new Random(seed), 4));
+		}
+	}
+
+	@Test
+	public void handsOutTheSamePeerUntilPutAgain() {
+		Membership members = new PrimitiveMembershipTable(SELF, new Random(0),
+				4);
+		members.put(peer(1, NodeState.ALIVE, 1));
+		Peer peer = members.getPeer(1);
+		assertSame(peer, members.getPeer(1));
+		assertSame(peer, members.nextProbeTarget());
+
+		members.setState(1, NodeState.SUSPECTED);
+		assertSame(peer, members.getPeer(1));
+		assertEquals(NodeState.SUSPECTED, peer.getState());
+
+		members.put(peer(1, NodeState.ALIVE, 2));
+		assertEquals(1, peer.getIncarnation());
+		assertEquals(2, members.getPeer(1).getIncarnation());
+		assertNull(members.getPeer(2));
+	}
+
+	private void run(Random rand, Membership expected, Membership actual) {
+		for (int i = 0; i < OPERATIONS; i++) {
+			int id = rand.nextInt(IDS);
+			switch (rand.nextInt(6)) {
+			case 0:
+			case 1:
+				Peer peer = peer(id, STATES[rand.nextInt(STATES.length)],
+						rand.nextInt(5));
+				expected.put(peer);
+				actual.put(peer);
+				break;
+			case 2:
+				NodeState state = STATES[rand.nextInt(STATES.length)];
+				expected.setState(id, state);
+				actual.setState(id, state);
+				break;
+			case 3:
+				expected.resetInfectionTime(id);
+				actual.resetInfectionTime(id);
+				break;
+			case 4:
+				int size = 1 + rand.nextInt(8);
+				int maxInfection = rand.nextInt(6);
+				assertSamePeers(expected.disseminate(size, maxInfection, null),
+						actual.disseminate(size, maxInfection, null));
+				break;
+			default:
+				assertValidProbe(expected, expected.nextProbeTarget());
+				assertValidProbe(actual, actual.nextProbeTarget());
+				int sampled = 1 + rand.nextInt(5);
+				assertValidSample(actual, sampled, sample(expected, sampled));
+				assertValidSample(actual, sampled, sample(actual, sampled));
+			}
+			assertSameView(expected, actual);
+		}
+		assertProbesEveryMember(expected);
+		assertProbesEveryMember(actual);
+	}
+
+	private static void assertSameView(Membership expected, Membership actual) {
+		assertEquals(expected.size(), actual.size());
+		for (NodeState state : STATES) {
+			assertEquals(expected.count(state), actual.count(state));
+		}
+		for (int id = 0; id < IDS; id++) {
+			assertEquals(expected.contains(id), actual.contains(id));
+			assertEquals(expected.getState(id), actual.getState(id));
+			assertEquals(expected.getIncarnation(id), actual.getIncarnation(id));
+			assertSamePeer(expected.getPeer(id), actual.getPeer(id));
+		}
+	}
+
+	private static void assertSamePeers(List<Peer> expected, List<Peer> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertSamePeer(expected.get(i), actual.get(i));
+		}
+	}
+
+	private static void assertSamePeer(Peer expected, Peer actual) {
+		if (expected == null) {
+			assertNull(actual);
+			return;
+		}
+		assertEquals(expected, actual);
+		assertEquals(expected.getState(), actual.getState());
+		assertEquals(expected.getIncarnation(), actual.getIncarnation());
+	}
+
+	private static void assertValidProbe(Membership members, Peer target) {
+		if (target == null) {
+			for (int id = 0; id < IDS; id++) {
+				assertTrue(id == SELF || !members.contains(id)
+						|| members.getState(id) == NodeState.DEAD);
+			}
+			return;
+		}
+		int id = target.getNode().getId();
+		assertNotEquals(SELF, id);
+		assertNotEquals(NodeState.DEAD, members.getState(id));
+	}
+
+	/**
+	 * What is left of the current round and a full round take at most twice
+	 * the number of members to probe.
+	 */
+	private static void assertProbesEveryMember(Membership members) {
+		Set<Integer> toProbe = new HashSet<Integer>();
+		for (int id = 0; id < IDS; id++) {
+			if (id != SELF && members.contains(id)
+					&& members.getState(id) != NodeState.DEAD) {
+				toProbe.add(id);
+			}
+		}
+		Set<Integer> probed = new HashSet<Integer>();
+		for (int i = 0; i < 2 * toProbe.size(); i++) {
+			probed.add(members.nextProbeTarget().getNode().getId());
+		}
+		assertEquals(toProbe, probed);
+	}
+
+	private static void assertValidSample(Membership members, int size,
+			List<Peer> sample) {
+		int alive = members.count(NodeState.ALIVE);
+		if (members.getState(SELF) == NodeState.ALIVE) {
+			alive--;
+		}
+		assertEquals(Math.min(size, alive), sample.size());
+		Set<Integer> ids = new HashSet<Integer>();
+		for (Peer peer : sample) {
+			int id = peer.getNode().getId();
+			assertFalse(id == SELF);
+			assertEquals(NodeState.ALIVE, members.getState(id));
+			assertTrue(ids.add(id));
+		}
+	}
+
+	private static List<Peer> sample(Membership members, int size) {
+		List<Peer> ret = new ArrayList<Peer>();
+		members.sampleAlive(size, new Random(size), ret);
+		return ret;
+	}
+
+	private Peer peer(int id, NodeState state, int incarnation) {
+		return new Peer(addresses.open(id), state, incarnation);
+	}
+}
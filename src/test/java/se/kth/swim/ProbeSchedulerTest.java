@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * GVoD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.swim;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ProbeSchedulerTest {
+	private TestAddresses addresses;
+	private ProbeScheduler probes;
+	private List<Member> members;
+
+	@Before
+	public void setUp() {
+		addresses = new TestAddresses();
+		probes = new ProbeScheduler(new Random(1));
+		members = new ArrayList<>();
+		for (int id = 0; id < 20; id++) {
+			Member member = new Member(new Peer(addresses.open(id),
+					NodeState.ALIVE, 0));
+			members.add(member);
+			probes.add(member);
+		}
+	}
+
+	@Test
+	public void probesEveryMemberOncePerRound() {
+		for (int round = 0; round < 5; round++) {
+			assertEquals(ids(members), probe(members.size()));
+		}
+	}
+
+	@Test
+	public void removedMembersAreNotProbed() {
+		// Some of the removed members were probed in this round already
+		Set<Integer> probed = probe(7);
+		List<Member> left = new ArrayList<>(members);
+		for (int i = 0; i < 20; i += 4) {
+			probes.remove(members.get(i));
+			left.remove(members.get(i));
+		}
+		assertEquals(15, probes.size());
+
+		Set<Integer> rest = ids(left);
+		rest.removeAll(probed);
+		assertEquals(rest, probe(rest.size()));
+		for (int round = 0; round < 3; round++) {
+			assertEquals(ids(left), probe(left.size()));
+		}
+	}
+
+	@Test
+	public void addedBackMembersAreProbedInTheCurrentRound() {
+		probes.remove(members.get(3));
+		Set<Integer> probed = probe(10);
+		probes.add(members.get(3));
+
+		Set<Integer> rest = ids(members);
+		rest.removeAll(probed);
+		assertTrue(rest.contains(3));
+		assertEquals(rest, probe(rest.size()));
+		assertEquals(ids(members), probe(members.size()));
+	}
+
+	@Test
+	public void returnsNullWithoutMembers() {
+		for (Member member : members) {
+			probes.remove(member);
+		}
+		assertNull(probes.next());
+		assertNull(probes.next());
+	}
+
+	@Test
+	public void tablesNeverProbeSelfOrDeadMembers() {
+		for (Membership table : new Membership[] {
+				new MembershipTable(0, new Random(2)),
+				new PrimitiveMembershipTable(0, new Random(2), 4) }) {
+			for (Member member : members) {
+				table.put(member.getPeer());
+			}
+			table.setState(5, NodeState.DEAD);
+			table.put(new Peer(addresses.open(6), NodeState.DEAD, 1));
+			table.setState(7, NodeState.SUSPECTED);
+
+			for (int round = 0; round < 3; round++) {
+				Set<Integer> probed = new HashSet<>();
+				for (int i = 0; i < 17; i++) {
+					probed.add(table.nextProbeTarget().getNode().getId());
+				}
+				assertEquals(17, probed.size());
+				assertTrue(!probed.contains(0) && !probed.contains(5)
+						&& !probed.contains(6));
+			}
+
+			// Back alive with a newer incarnation
+			table.put(new Peer(addresses.open(5), NodeState.ALIVE, 1));
+			Set<Integer> probed = new HashSet<>();
+			for (int i = 0; i < 18 * 2; i++) {
+				probed.add(table.nextProbeTarget().getNode().getId());
+			}
+			assertTrue(probed.contains(5));
+
+			for (int id = 1; id < 20; id++) {
+				table.setState(id, NodeState.DEAD);
+			}
+			assertNull(table.nextProbeTarget());
+		}
+	}
+
+	/**
+	 * @return The distinct ids of the next probes, there must be as many as
+	 *         probes.
+	 */
+	private Set<Integer> probe(int count) {
+		Set<Integer> ids = new HashSet<>();
+		for (int i = 0; i < count; i++) {
+			assertTrue(ids.add(probes.next().getPeer().getNode().getId()));
+		}
+		return ids;
+	}
+
+	private static Set<Integer> ids(List<Member> members) {
+		Set<Integer> ids = new HashSet<>();
+		for (Member member : members) {
+			ids.add(member.getPeer().getNode().getId());
+		}
+		return ids;
+	}
+}
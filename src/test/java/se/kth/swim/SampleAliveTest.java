@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * GVoD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.swim;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Sampling of the alive members, the peers of the indirect pings, on both
+ * {@link Membership} layouts.
+ */
+public class SampleAliveTest {
+	private static final int SELF = 0;
+	private static final int ALIVE = 20;
+	private static final int SUSPECTED = 5;
+	private static final int DEAD = 3;
+	private static final int ROUNDS = 30000;
+
+	private final TestAddresses addresses = new TestAddresses();
+
+	@Test
+	public void samplesUniformly() {
+		assertUniform(fill(new MembershipTable(SELF, new Random(0))));
+		assertUniform(fill(new PrimitiveMembershipTable(SELF, new Random(0),
+				4)));
+	}
+
+	@Test
+	public void samplesUniformlyAfterStateChanges() {
+		assertUniform(shuffleStates(fill(new MembershipTable(SELF,
+				new Random(0)))));
+		assertUniform(shuffleStates(fill(new PrimitiveMembershipTable(SELF,
+				new Random(0), 4))));
+	}
+
+	@Test
+	public void returnsEveryAliveMemberWhenAskedForMore() {
+		assertAll(fill(new MembershipTable(SELF, new Random(0))));
+		assertAll(fill(new PrimitiveMembershipTable(SELF, new Random(0), 4)));
+	}
+
+	@Test
+	public void excludesSelfWhateverItsState() {
+		Membership objects = fill(new MembershipTable(SELF, new Random(0)));
+		Membership primitive = fill(new PrimitiveMembershipTable(SELF,
+				new Random(0), 4));
+		for (NodeState state : NodeState.values()) {
+			objects.setState(SELF, state);
+			primitive.setState(SELF, state);
+			assertAll(objects);
+			assertAll(primitive);
+		}
+	}
+
+	/**
+	 * Self and ids 1 to ALIVE are alive, then come the suspected and the
+	 * dead members.
+	 */
+	private Membership fill(Membership members) {
+		members.put(new Peer(addresses.open(SELF), NodeState.ALIVE, 0));
+		int id = 1;
+		for (int i = 0; i < ALIVE; i++) {
+			members.put(new Peer(addresses.open(id++), NodeState.ALIVE, 0));
+		}
+		for (int i = 0; i < SUSPECTED; i++) {
+			members.put(new Peer(addresses.open(id++), NodeState.SUSPECTED, 0));
+		}
+		for (int i = 0; i < DEAD; i++) {
+			members.put(new Peer(addresses.open(id++), NodeState.DEAD, 0));
+		}
+		return members;
+	}
+
+	/**
+	 * Moves members out of the alive group and back, which reorders it.
+	 */
+	private static Membership shuffleStates(Membership members) {
+		for (int id = 1; id <= ALIVE; id += 3) {
+			members.setState(id, NodeState.SUSPECTED);
+		}
+		for (int id = 1; id <= ALIVE; id += 3) {
+			members.setState(id, NodeState.ALIVE);
+		}
+		return members;
+	}
+
+	private static void assertUniform(Membership members) {
+		Random rand = new Random(1);
+		int size = 3;
+		int[] hits = new int[ALIVE + SUSPECTED + DEAD + 1];
+		int[] first = new int[hits.length];
+		for (int i = 0; i < ROUNDS; i++) {
+			List<Peer> sample = sample(members, size, rand);
+			assertEquals(size, sample.size());
+			first[sample.get(0).getNode().getId()]++;
+			for (Peer peer : sample) {
+				hits[peer.getNode().getId()]++;
+			}
+		}
+
+		assertEquals(0, hits[SELF]);
+		double expected = ROUNDS * (double) size / ALIVE;
+		double expectedFirst = ROUNDS / (double) ALIVE;
+		for (int id = 1; id <= ALIVE; id++) {
+			assertEquals(expected, hits[id], expected * 0.05);
+			assertEquals(expectedFirst, first[id], expectedFirst * 0.1);
+		}
+		for (int id = ALIVE + 1; id < hits.length; id++) {
+			assertEquals(0, hits[id]);
+		}
+	}
+
+	private static void assertAll(Membership members) {
+		Set<Integer> alive = new HashSet<Integer>();
+		for (int id = 1; id <= ALIVE; id++) {
+			alive.add(id);
+		}
+		assertEquals(alive, ids(sample(members, ALIVE + 10, new Random(1))));
+	}
+
+	/**
+	 * @return The sampled peers, checked to be distinct, alive and not self.
+	 */
+	private static List<Peer> sample(Membership members, int size,
+			Random rand) {
+		List<Peer> ret = new ArrayList<Peer>();
+		members.sampleAlive(size, rand, ret);
+		assertEquals(ret.size(), ids(ret).size());
+		for (Peer peer : ret) {
+			assertTrue(peer.getNode().getId() != SELF);
+			assertEquals(NodeState.ALIVE, peer.getState());
+		}
+		return ret;
+	}
+
+	private static Set<Integer> ids(List<Peer> peers) {
+		Set<Integer> ids = new HashSet<Integer>();
+		for (Peer peer : peers) {
+			ids.add(peer.getNode().getId());
+		}
+		return ids;
+	}
+}
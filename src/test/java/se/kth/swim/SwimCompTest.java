@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * GVoD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.swim;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Random;
+import java.util.UUID;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import se.kth.swim.msg.net.NetPing;
+import se.kth.swim.msg.net.SwimCodec;
+import se.kth.swim.util.SequenceTable;
+import se.sics.p2ptoolbox.util.network.NatedAddress;
+
+/**
+ * Receiving side of SwimComp: the messages go through the codec, the
+ * duplicate filter and the merge of their piggyback, as in the handlers.
+ */
+public class SwimCompTest {
+	private static final int EPOCH = 7;
+
+	private TestAddresses addresses;
+	private NatedAddress sender;
+	private NatedAddress receiver;
+	private Peer self;
+	private Membership members;
+	private SequenceTable seen;
+
+	@Before
+	public void setUp() {
+		addresses = new TestAddresses();
+		sender = addresses.open(1);
+		receiver = addresses.open(2);
+		self = new Peer(receiver, NodeState.ALIVE, 1);
+		members = new MembershipTable(receiver.getId(), new Random(0));
+		members.put(self);
+		seen = new SequenceTable(4);
+	}
+
+	@Test
+	public void acceptsARestartedNode() {
+		for (int counter = 1; counter <= 5; counter++) {
+			assertTrue(receive(ping(EPOCH, counter, 1)));
+		}
+
+		// Back with a new epoch, the counter and the incarnation start over
+		assertTrue(receive(ping(EPOCH + 1, 1, 0)));
+		assertTrue(receive(ping(EPOCH + 1, 2, 1)));
+		assertFalse(receive(ping(EPOCH + 1, 2, 1)));
+
+		// A message sent before the restart arrives late
+		assertFalse(receive(ping(EPOCH, 6, 1)));
+	}
+
+	@Test
+	public void refutationDoesNotReadmitDuplicates() {
+		assertTrue(receive(ping(EPOCH, 1, 1)));
+		assertTrue(receive(ping(EPOCH, 3, 1)));
+		members.setState(sender.getId(), NodeState.SUSPECTED);
+
+		// The sender refutes with a new incarnation
+		assertTrue(receive(ping(EPOCH, 4, 2)));
+		assertEquals(NodeState.ALIVE, members.getState(sender.getId()));
+		assertEquals(2, members.getIncarnation(sender.getId()));
+
+		// Hedged copies and duplicates are still dropped, a reordered
+		// message is still accepted once
+		assertFalse(receive(ping(EPOCH, 4, 2)));
+		assertFalse(receive(ping(EPOCH, 3, 1)));
+		assertTrue(receive(ping(EPOCH, 2, 1)));
+		assertFalse(receive(ping(EPOCH, 2, 1)));
+	}
+
+	/**
+	 * A PING of the sender piggybacking itself alive.
+	 */
+	private NetPing ping(int epoch, int counter, int incarnation) {
+		return new NetPing(sender, receiver, Collections.singletonList(
+				new Peer(sender, NodeState.ALIVE, incarnation)),
+				UUID.randomUUID(), counter, epoch);
+	}
+
+	private boolean receive(NetPing ping) {
+		NetPing received = (NetPing) SwimCodec.fromBytes(
+				SwimCodec.toBytes(ping), addresses);
+		if (!SwimComp.isCausalOrNew(seen, received.getSource().getId(),
+				received.getContent())) {
+			return false;
+		}
+		PeerExchangeSelection.merge(self, members, received.getContent()
+				.getPiggyback());
+		return true;
+	}
+}
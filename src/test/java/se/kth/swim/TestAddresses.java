@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * GVoD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.swim;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import se.kth.swim.msg.net.AddressResolver;
+import se.sics.p2ptoolbox.util.network.NatType;
+import se.sics.p2ptoolbox.util.network.NatedAddress;
+import se.sics.p2ptoolbox.util.network.impl.BasicAddress;
+import se.sics.p2ptoolbox.util.network.impl.BasicNatedAddress;
+
+/**
+ * Addresses for the tests. Every address created is remembered, so that the
+ * receiver of an encoded message can be assumed to know all of them.
+ */
+public class TestAddresses implements AddressResolver {
+	public static final InetAddress IP = ip();
+	public static final int PORT = 12345;
+	// Parents get ids from here on, so they do not clash with the nodes
+	public static final int FIRST_PARENT = 1000;
+
+	private final Map<Integer, NatedAddress> known = new HashMap<>();
+
+	public NatedAddress open(int id) {
+		return remember(unknown(id));
+	}
+
+	public NatedAddress nated(int id, Collection<NatedAddress> parents) {
+		return remember(new BasicNatedAddress(new BasicAddress(IP, PORT, id),
+				NatType.NAT, new HashSet<>(parents)));
+	}
+
+	/**
+	 * @return Open addresses with ids from {@link #FIRST_PARENT} on.
+	 */
+	public List<NatedAddress> parents(int count) {
+		List<NatedAddress> parents = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			parents.add(open(FIRST_PARENT + i));
+		}
+		return parents;
+	}
+
+	@Override
+	public NatedAddress resolve(int id) {
+		return known.get(id);
+	}
+
+	/**
+	 * @return An open address that is not remembered.
+	 */
+	public static NatedAddress unknown(int id) {
+		return new BasicNatedAddress(new BasicAddress(IP, PORT, id));
+	}
+
+	private NatedAddress remember(NatedAddress address) {
+		known.put(address.getId(), address);
+		return address;
+	}
+
+	private static InetAddress ip() {
+		try {
+			return InetAddress.getByName("193.10.64.1");
+		} catch (UnknownHostException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,206 @@
+/**
+ * This file is part of the Kompics P2P Framework.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * Kompics is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package se.kth.swim.croupier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import se.kth.swim.croupier.internal.CroupierContainer;
+import se.kth.swim.croupier.internal.CroupierView;
+import se.sics.p2ptoolbox.util.network.NatedAddress;
+import se.sics.p2ptoolbox.util.network.impl.BasicAddress;
+import se.sics.p2ptoolbox.util.network.impl.BasicNatedAddress;
+
+/**
+ * How fast the selection policies evict the descriptors of dead nodes. Runs
+ * shuffle rounds on in-memory views, every live node shuffles once per round
+ * and a shuffle with a dead node times out. After a warm up part of the
+ * nodes is killed and the dead descriptors left in the views of the live
+ * nodes are counted every round.
+ */
+public class CroupierSelectionPolicyTest {
+
+    private static final int NODES = 300;
+    private static final int KILLED = 50;
+    private static final int VIEW_SIZE = 10;
+    private static final int SHUFFLE_SIZE = 5;
+    private static final int WARM_UP_ROUNDS = 20;
+    private static final int ROUNDS = 30;
+
+    private static NatedAddress[] addresses;
+
+    @BeforeClass
+    public static void setUp() throws UnknownHostException {
+        InetAddress ip = InetAddress.getByName("127.0.0.1");
+        addresses = new NatedAddress[NODES];
+        for (int i = 0; i < NODES; i++) {
+            addresses[i] = new BasicNatedAddress(new BasicAddress(ip, 12345, i));
+        }
+    }
+
+    @Test
+    public void tailEvictsDeadNodesFasterThanRandom() {
+        int[] random = deadDescriptors(CroupierSelectionPolicy.RANDOM, 0);
+        int[] tail = deadDescriptors(CroupierSelectionPolicy.TAIL, 0);
+        assertFasterThan(random, tail);
+    }
+
+    @Test
+    public void healerEvictsDeadNodesFasterThanRandom() {
+        int[] random = deadDescriptors(CroupierSelectionPolicy.RANDOM, 0);
+        int[] healer = deadDescriptors(CroupierSelectionPolicy.HEALER, 0);
+        assertFasterThan(random, healer);
+        // replacing the oldest descriptors on merge does not slow the eviction down
+        int[] tail = deadDescriptors(CroupierSelectionPolicy.TAIL, 0);
+        assertTrue(evictedAt(healer) <= evictedAt(tail));
+    }
+
+    @Test
+    public void softMaxStillEvictsFasterThanRandom() {
+        int[] random = deadDescriptors(CroupierSelectionPolicy.RANDOM, 0);
+        assertFasterThan(random, deadDescriptors(CroupierSelectionPolicy.TAIL, 1));
+        assertFasterThan(random, deadDescriptors(CroupierSelectionPolicy.HEALER, 1));
+    }
+
+    private static void assertFasterThan(int[] random, int[] policy) {
+        assertTrue(policy[5] < random[5]);
+        assertTrue(policy[10] < random[10]);
+        assertEquals(0, policy[ROUNDS]);
+        // random selection reaches some dead descriptors only by chance
+        assertTrue(random[ROUNDS] > 0);
+    }
+
+    private static int evictedAt(int[] left) {
+        for (int round = 1; round <= ROUNDS; round++) {
+            if (left[round] == 0) {
+                return round;
+            }
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * @return dead descriptors in the live views after each round, index 0
+     * is right after the kill
+     */
+    private static int[] deadDescriptors(CroupierSelectionPolicy policy, double temperature) {
+        Random rand = new Random(1);
+        int healerSize = policy == CroupierSelectionPolicy.HEALER ? SHUFFLE_SIZE / 2 : 0;
+        List<CroupierView<Object>> views = new ArrayList<CroupierView<Object>>();
+        for (int i = 0; i < NODES; i++) {
+            views.add(new CroupierView<Object>((BasicAddress) addresses[i].getBaseAdr(), VIEW_SIZE, healerSize, rand));
+        }
+        // every node starts knowing its successors, like a bootstrap ring
+        for (int i = 0; i < NODES; i++) {
+            Set<CroupierContainer<Object>> known = new HashSet<CroupierContainer<Object>>();
+            for (int j = 1; j <= VIEW_SIZE; j++) {
+                known.add(new CroupierContainer<Object>(addresses[(i + j) % NODES], null));
+            }
+            views.get(i).selectToKeep(addresses[(i + 1) % NODES], UUID.randomUUID(), known);
+        }
+
+        boolean[] dead = new boolean[NODES];
+        for (int round = 0; round < WARM_UP_ROUNDS; round++) {
+            round(views, dead, policy, temperature, rand);
+        }
+        List<Integer> ids = new ArrayList<Integer>();
+        for (int i = 0; i < NODES; i++) {
+            ids.add(i);
+        }
+        Collections.shuffle(ids, rand);
+        for (int i = 0; i < KILLED; i++) {
+            dead[ids.get(i)] = true;
+        }
+
+        int[] left = new int[ROUNDS + 1];
+        left[0] = count(views, dead);
+        for (int round = 1; round <= ROUNDS; round++) {
+            round(views, dead, policy, temperature, rand);
+            left[round] = count(views, dead);
+        }
+        return left;
+    }
+
+    /**
+     * One shuffle cycle of every live node, in random order
+     */
+    private static void round(List<CroupierView<Object>> views, boolean[] dead,
+            CroupierSelectionPolicy policy, double temperature, Random rand) {
+        List<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < NODES; i++) {
+            if (!dead[i]) {
+                order.add(i);
+            }
+        }
+        Collections.shuffle(order, rand);
+
+        for (int i : order) {
+            CroupierView<Object> view = views.get(i);
+            if (view.isEmpty()) {
+                continue;
+            }
+            NatedAddress peer = view.selectPeerToShuffleWith(policy, temperature > 0, temperature);
+            view.incrementDescriptorAges();
+            if (dead[peer.getId()]) {
+                view.timedOut(peer);
+                continue;
+            }
+
+            UUID shuffleId = UUID.randomUUID();
+            Set<CroupierContainer<Object>> request = view.initiatorCopySet(SHUFFLE_SIZE, peer, shuffleId);
+            request.add(new CroupierContainer<Object>(addresses[i], null));
+
+            CroupierView<Object> peerView = views.get(peer.getId());
+            peerView.incrementDescriptorAges();
+            Set<CroupierContainer<Object>> response = peerView.receiverCopySet(SHUFFLE_SIZE, addresses[i], shuffleId);
+            response.add(new CroupierContainer<Object>(peer, null));
+            peerView.selectToKeep(addresses[i], shuffleId, request);
+
+            view.selectToKeep(peer, shuffleId, response);
+        }
+    }
+
+    private static int count(List<CroupierView<Object>> views, boolean[] dead) {
+        int count = 0;
+        for (int i = 0; i < views.size(); i++) {
+            if (dead[i]) {
+                continue;
+            }
+            for (CroupierContainer<Object> descriptor : views.get(i).getAllCopy()) {
+                if (dead[descriptor.getSource().getId()]) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+}
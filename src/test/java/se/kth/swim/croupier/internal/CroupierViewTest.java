@@ -0,0 +1,212 @@
+/**
+ * This file is part of the Kompics P2P Framework.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * Kompics is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package se.kth.swim.croupier.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import org.junit.Before;
+import org.junit.Test;
+import se.kth.swim.croupier.CroupierSelectionPolicy;
+import se.sics.p2ptoolbox.util.network.NatedAddress;
+import se.sics.p2ptoolbox.util.network.impl.BasicAddress;
+import se.sics.p2ptoolbox.util.network.impl.BasicNatedAddress;
+
+public class CroupierViewTest {
+
+    private static final int VIEW_SIZE = 10;
+
+    private InetAddress ip;
+    private CroupierView<Object> view;
+
+    @Before
+    public void setUp() throws UnknownHostException {
+        ip = InetAddress.getByName("193.10.64.1");
+        view = new CroupierView<Object>((BasicAddress) address(0).getBaseAdr(), VIEW_SIZE, new Random(1));
+    }
+
+    @Test
+    public void keepsAtMostViewSizeEntriesAndNotSelf() {
+        view.selectToKeep(address(99), UUID.randomUUID(), descriptors(0, 15));
+        assertEquals(VIEW_SIZE, view.size());
+        assertFalse(ids(view.getAllCopy()).contains(0));
+    }
+
+    @Test
+    public void timedOutEntriesAreRemoved() {
+        view.selectToKeep(address(99), UUID.randomUUID(), descriptors(1, 11));
+        view.timedOut(address(1));
+        view.timedOut(address(5));
+        // removing an unknown peer changes nothing
+        view.timedOut(address(42));
+        assertEquals(8, view.size());
+
+        // the entries moved into the freed slots are still found
+        Set<Integer> left = ids(view.getAllCopy());
+        assertEquals(ids(descriptors(1, 11)).size() - 2, left.size());
+        assertFalse(left.contains(1));
+        assertFalse(left.contains(5));
+        for (int id : left) {
+            view.timedOut(address(id));
+        }
+        assertTrue(view.isEmpty());
+        assertTrue(view.getAllCopy().isEmpty());
+    }
+
+    @Test
+    public void samplesAllEntriesWhenAskedForMore() {
+        view.selectToKeep(address(99), UUID.randomUUID(), descriptors(1, 4));
+        assertEquals(ids(descriptors(1, 4)), ids(view.initiatorCopySet(5, address(50), UUID.randomUUID())));
+    }
+
+    @Test
+    public void samplesUniformly() {
+        view.selectToKeep(address(99), UUID.randomUUID(), descriptors(1, 11));
+        view.timedOut(address(3));
+        view.selectToKeep(address(99), UUID.randomUUID(), descriptors(20, 21));
+
+        int rounds = 30000;
+        int[] hits = new int[21];
+        for (int i = 0; i < rounds; i++) {
+            Set<CroupierContainer<Object>> sample = view.initiatorCopySet(3, address(50), UUID.randomUUID());
+            assertEquals(3, sample.size());
+            for (int id : ids(sample)) {
+                hits[id]++;
+            }
+        }
+        double expected = rounds * 3.0 / VIEW_SIZE;
+        for (int id : ids(view.getAllCopy())) {
+            assertEquals(expected, hits[id], expected * 0.05);
+        }
+        assertEquals(0, hits[3]);
+    }
+
+    @Test
+    public void replacesTheEntriesSentInTheSameShuffle() {
+        view.selectToKeep(address(99), UUID.randomUUID(), descriptors(1, 11));
+        UUID shuffleId = UUID.randomUUID();
+        Set<Integer> sent = ids(view.initiatorCopySet(3, address(50), shuffleId));
+        // a later exchange must not take the slots of this one
+        view.initiatorCopySet(3, address(60), UUID.randomUUID());
+
+        view.selectToKeep(address(50), shuffleId, descriptors(30, 33));
+        Set<Integer> now = ids(view.getAllCopy());
+        assertEquals(VIEW_SIZE, now.size());
+        assertTrue(now.containsAll(ids(descriptors(30, 33))));
+        for (int id = 1; id < 11; id++) {
+            assertEquals(!sent.contains(id), now.contains(id));
+        }
+    }
+
+    @Test
+    public void tailDropsTheShuffleTargetAndRandomKeepsIt() {
+        view.selectToKeep(address(99), UUID.randomUUID(), agedDescriptors(1, 11));
+        assertEquals(10, (int) view.selectPeerToShuffleWith(CroupierSelectionPolicy.TAIL, false, 0).getId());
+        assertEquals(VIEW_SIZE - 1, view.size());
+        assertFalse(ids(view.getAllCopy()).contains(10));
+
+        view.selectToKeep(address(99), UUID.randomUUID(), agedDescriptors(10, 11));
+        view.selectPeerToShuffleWith(CroupierSelectionPolicy.RANDOM, false, 0);
+        assertEquals(VIEW_SIZE, view.size());
+    }
+
+    @Test
+    public void healerReplacesTheOldestEntriesFirst() {
+        view = new CroupierView<Object>((BasicAddress) address(0).getBaseAdr(), VIEW_SIZE, 2, new Random(1));
+        view.selectToKeep(address(99), UUID.randomUUID(), agedDescriptors(1, 11));
+        UUID shuffleId = UUID.randomUUID();
+        Set<Integer> sent = ids(view.initiatorCopySet(3, address(50), shuffleId));
+
+        view.selectToKeep(address(50), shuffleId, descriptors(30, 33));
+        Set<Integer> now = ids(view.getAllCopy());
+        assertEquals(VIEW_SIZE, now.size());
+        assertTrue(now.containsAll(ids(descriptors(30, 33))));
+        assertFalse(now.contains(9));
+        assertFalse(now.contains(10));
+        // the third one takes a slot sent in the exchange
+        int replaced = 0;
+        for (int id = 1; id < 9; id++) {
+            if (!now.contains(id)) {
+                assertTrue(sent.contains(id));
+                replaced++;
+            }
+        }
+        assertEquals(1, replaced);
+    }
+
+    @Test
+    public void healerKeepsAnOldEntryRefreshedInTheSameMerge() {
+        view = new CroupierView<Object>((BasicAddress) address(0).getBaseAdr(), VIEW_SIZE, 2, new Random(1));
+        view.selectToKeep(address(99), UUID.randomUUID(), agedDescriptors(1, 11));
+
+        // the fresh descriptor of 10 is merged first
+        Set<CroupierContainer<Object>> received = new LinkedHashSet<CroupierContainer<Object>>();
+        received.add(new CroupierContainer<Object>(address(10), null, 0));
+        received.add(new CroupierContainer<Object>(address(30), null, 1));
+        received.add(new CroupierContainer<Object>(address(31), null, 1));
+        view.selectToKeep(address(99), UUID.randomUUID(), received);
+        Set<Integer> now = ids(view.getAllCopy());
+        assertTrue(now.contains(10));
+        assertFalse(now.contains(9));
+        assertTrue(now.contains(30));
+        // nothing else is replaceable, nothing was sent in this exchange
+        assertFalse(now.contains(31));
+    }
+
+    /**
+     * The age of each descriptor is its id, the highest id is the oldest
+     */
+    private Set<CroupierContainer<Object>> agedDescriptors(int from, int to) {
+        Set<CroupierContainer<Object>> descriptors = new HashSet<CroupierContainer<Object>>();
+        for (int id = from; id < to; id++) {
+            descriptors.add(new CroupierContainer<Object>(address(id), null, id));
+        }
+        return descriptors;
+    }
+
+    private Set<CroupierContainer<Object>> descriptors(int from, int to) {
+        Set<CroupierContainer<Object>> descriptors = new HashSet<CroupierContainer<Object>>();
+        for (int id = from; id < to; id++) {
+            descriptors.add(new CroupierContainer<Object>(address(id), null, 1));
+        }
+        return descriptors;
+    }
+
+    private static Set<Integer> ids(Set<CroupierContainer<Object>> descriptors) {
+        Set<Integer> ids = new HashSet<Integer>();
+        for (CroupierContainer<Object> descriptor : descriptors) {
+            ids.add(descriptor.getSource().getId());
+        }
+        return ids;
+    }
+
+    private NatedAddress address(int id) {
+        return new BasicNatedAddress(new BasicAddress(ip, 12345, id));
+    }
+}
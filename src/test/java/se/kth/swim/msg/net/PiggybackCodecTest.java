@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * GVoD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.swim.msg.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import se.kth.swim.NodeState;
+import se.kth.swim.Peer;
+import se.kth.swim.TestAddresses;
+import se.sics.p2ptoolbox.util.network.NatType;
+import se.sics.p2ptoolbox.util.network.NatedAddress;
+
+public class PiggybackCodecTest {
+	private TestAddresses addresses;
+	private List<NatedAddress> parents;
+
+	@Before
+	public void setUp() {
+		addresses = new TestAddresses();
+		parents = addresses.parents(5);
+	}
+
+	@Test
+	public void sortsByIdAndKeepsIdsAcrossDeltas() {
+		List<Peer> peers = Arrays.asList(alive(addresses.open(500000)),
+				alive(addresses.open(3)), alive(addresses.open(0)),
+				alive(addresses.open(70000)), alive(addresses.open(4)));
+		List<Peer> decoded = roundTrip(peers);
+		List<Integer> ids = new ArrayList<>();
+		for (Peer peer : decoded) {
+			ids.add(peer.getNode().getId());
+		}
+		assertEquals(Arrays.asList(0, 3, 4, 70000, 500000), ids);
+	}
+
+	@Test
+	public void smallIdDeltasTakeOneByte() {
+		List<Peer> close = Arrays.asList(alive(addresses.open(100)),
+				alive(addresses.open(101)));
+		List<Peer> far = Arrays.asList(alive(addresses.open(100)),
+				alive(addresses.open(100000)));
+		assertEquals(PiggybackCodec.size(close) + 2, PiggybackCodec.size(far));
+	}
+
+	@Test
+	public void nonAliveEntriesAreSentWithoutAddress() {
+		NatedAddress node = addresses.nated(7, parents);
+		Peer suspected = new Peer(node, NodeState.SUSPECTED, 3);
+		Peer dead = new Peer(addresses.open(8), NodeState.DEAD, 9);
+		List<Peer> decoded = roundTrip(Arrays.asList(suspected, dead));
+
+		assertEquals(2, decoded.size());
+		// The address comes from what the receiver knows
+		assertSame(node, decoded.get(0).getNode());
+		assertEquals(NodeState.SUSPECTED, decoded.get(0).getState());
+		assertEquals(3, decoded.get(0).getIncarnation());
+		assertEquals(NodeState.DEAD, decoded.get(1).getState());
+		assertEquals(9, decoded.get(1).getIncarnation());
+
+		// Only the flags, the id and the incarnation
+		assertEquals(1 + 1 + 1 + 1, PiggybackCodec.size(Collections
+				.singletonList(suspected)));
+	}
+
+	@Test
+	public void dropsEntriesWithoutAddressOfUnknownNodes() {
+		Peer unknown = new Peer(TestAddresses.unknown(99),
+				NodeState.DEAD, 1);
+		List<Peer> decoded = roundTrip(Arrays.asList(unknown,
+				alive(addresses.open(5))));
+		assertEquals(1, decoded.size());
+		assertEquals(5, (int) decoded.get(0).getNode().getId());
+	}
+
+	@Test
+	public void aliveNatedEntriesCarryTheirParents() {
+		NatedAddress node = addresses.nated(20, parents.subList(0, 3));
+		Peer decoded = roundTrip(Collections.singletonList(alive(node))).get(0);
+		assertEquals(NatType.NAT, decoded.getNode().getNatType());
+		assertEquals(node.getParents(), decoded.getNode().getParents());
+		assertEquals(node.getBaseAdr(), decoded.getNode().getBaseAdr());
+	}
+
+	@Test
+	public void sharedParentsAreWrittenOnce() {
+		Peer first = alive(addresses.nated(20, parents));
+		Peer second = alive(addresses.nated(21, parents));
+		int one = PiggybackCodec.size(Collections.singletonList(first));
+		int both = PiggybackCodec.size(Arrays.asList(first, second));
+		// The second entry refers to the parents already in the dictionary
+		assertTrue(both - one < one / 2);
+
+		List<Peer> decoded = roundTrip(Arrays.asList(first, second));
+		assertEquals(new HashSet<>(parents), decoded.get(0).getNode()
+				.getParents());
+		assertEquals(new HashSet<>(parents), decoded.get(1).getNode()
+				.getParents());
+	}
+
+	@Test
+	public void sizeMatchesTheBytesWritten() {
+		List<Peer> peers = Arrays.asList(alive(addresses.nated(20, parents)),
+				new Peer(addresses.open(21), NodeState.SUSPECTED, 1),
+				alive(addresses.open(22)),
+				alive(addresses.nated(300, parents.subList(1, 4))));
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		PiggybackCodec.write(peers, buffer);
+		assertEquals(PiggybackCodec.size(peers), buffer.position());
+	}
+
+	@Test
+	public void varintsRoundTrip() {
+		ByteBuffer buffer = ByteBuffer.allocate(64);
+		int[] values = { 0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE };
+		for (int value : values) {
+			PiggybackCodec.writeVarint(value, buffer);
+		}
+		buffer.flip();
+		for (int value : values) {
+			assertEquals(value, PiggybackCodec.readVarint(buffer));
+		}
+		assertEquals(1, PiggybackCodec.varintSize(PiggybackCodec.zigZag(-1)));
+	}
+
+	private List<Peer> roundTrip(List<Peer> peers) {
+		ByteBuffer buffer = ByteBuffer.allocate(PiggybackCodec.size(peers));
+		PiggybackCodec.write(peers, buffer);
+		assertEquals(0, buffer.remaining());
+		buffer.flip();
+		return PiggybackCodec.read(buffer, addresses);
+	}
+
+	private static Peer alive(NatedAddress node) {
+		return new Peer(node, NodeState.ALIVE, 1);
+	}
+}
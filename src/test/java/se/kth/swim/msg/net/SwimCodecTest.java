@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * GVoD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.swim.msg.net;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import se.kth.swim.NodeState;
+import se.kth.swim.Peer;
+import se.kth.swim.TestAddresses;
+import se.kth.swim.msg.IndirectPing;
+import se.kth.swim.msg.IndirectPong;
+import se.kth.swim.msg.Ping;
+import se.kth.swim.msg.Pong;
+import se.kth.swim.msg.StartIndirectPing;
+import se.kth.swim.msg.Status;
+import se.kth.swim.msg.StopIndirectPing;
+import se.kth.swim.nat.msg.NetBatch;
+import se.kth.swim.nat.msg.NetPayload;
+import se.kth.swim.nat.msg.Payload;
+import se.sics.kompics.network.Header;
+import se.sics.kompics.network.Transport;
+import se.sics.p2ptoolbox.util.network.NatedAddress;
+import se.sics.p2ptoolbox.util.network.impl.BasicHeader;
+import se.sics.p2ptoolbox.util.network.impl.RelayHeader;
+import se.sics.p2ptoolbox.util.network.impl.SourceHeader;
+
+public class SwimCodecTest {
+	private static final int EPOCH = -5;
+
+	private TestAddresses addresses;
+	private List<NatedAddress> parents;
+	private NatedAddress src;
+	private NatedAddress dst;
+	private Peer suspected;
+	private List<Peer> piggyback;
+	private UUID uuid;
+
+	@Before
+	public void setUp() {
+		addresses = new TestAddresses();
+		parents = addresses.parents(3);
+		src = addresses.open(1);
+		dst = addresses.nated(2, parents);
+		suspected = new Peer(addresses.nated(3, parents), NodeState.SUSPECTED,
+				4);
+		piggyback = Arrays.asList(
+				new Peer(addresses.open(10), NodeState.ALIVE, 1),
+				new Peer(addresses.nated(11, parents), NodeState.ALIVE, 2),
+				new Peer(addresses.open(12), NodeState.DEAD, 3));
+		uuid = UUID.randomUUID();
+	}
+
+	@Test
+	public void roundTripsPing() {
+		NetPing decoded = (NetPing) roundTrip(new NetPing(src, dst, piggyback,
+				uuid, 7, EPOCH));
+		assertBasicHeader(decoded.getHeader());
+		assertEquals(7, (int) decoded.getContent().getCounter());
+		assertEquals(EPOCH, decoded.getContent().getEpoch());
+		assertEquals(uuid, decoded.getContent().getPingTimeoutUUID());
+		assertPeers(piggyback, decoded.getContent().getPiggyback());
+	}
+
+	@Test
+	public void roundTripsPong() {
+		NetPong decoded = (NetPong) roundTrip(new NetPong(src, dst, piggyback,
+				uuid, 8, EPOCH));
+		assertBasicHeader(decoded.getHeader());
+		assertEquals(8, (int) decoded.getContent().getCounter());
+		assertEquals(EPOCH, decoded.getContent().getEpoch());
+		assertEquals(uuid, decoded.getContent().getPingTimeoutUUID());
+		assertPeers(piggyback, decoded.getContent().getView());
+	}
+
+	@Test
+	public void roundTripsStartIndirectPing() {
+		Peer initiator = new Peer(src, NodeState.ALIVE, 1);
+		StartIndirectPing decoded = (StartIndirectPing) roundTrip(
+				new NetStartIndirectPing(src, dst, new StartIndirectPing(
+						initiator, suspected, uuid, 9, EPOCH))).getContent();
+		assertEquals(9, (int) decoded.getCounter());
+		assertEquals(EPOCH, decoded.getEpoch());
+		assertEquals(uuid, decoded.getDeadPingTimeout());
+		assertPeer(initiator, decoded.getInitiatorPeer());
+		assertPeer(suspected, decoded.getSuspectedPeer());
+	}
+
+	@Test
+	public void roundTripsIndirectPing() {
+		IndirectPing decoded = (IndirectPing) roundTrip(
+				new NetIndirectPing(src, dst, new IndirectPing(suspected, uuid,
+						10, EPOCH))).getContent();
+		assertEquals(10, (int) decoded.getCounter());
+		assertEquals(EPOCH, decoded.getEpoch());
+		assertEquals(uuid, decoded.getDeadPingTimeout());
+		assertPeer(suspected, decoded.getIndirectPingRequester());
+	}
+
+	@Test
+	public void roundTripsIndirectPong() {
+		Peer initiator = new Peer(src, NodeState.ALIVE, 1);
+		IndirectPong decoded = (IndirectPong) roundTrip(
+				new NetIndirectPong(src, dst, new IndirectPong(initiator,
+						suspected, uuid, 11, EPOCH))).getContent();
+		assertEquals(11, (int) decoded.getCounter());
+		assertEquals(EPOCH, decoded.getEpoch());
+		assertEquals(uuid, decoded.getDeadTImeout());
+		assertPeer(initiator, decoded.getInitiatorPeer());
+		assertPeer(suspected, decoded.getSuspectedPeer());
+	}
+
+	@Test
+	public void roundTripsStopIndirectPing() {
+		StopIndirectPing decoded = (StopIndirectPing) roundTrip(
+				new NetStopIndirectPing(src, dst, new StopIndirectPing(
+						suspected, uuid, 12, EPOCH))).getContent();
+		assertEquals(12, (int) decoded.getCounter());
+		assertEquals(EPOCH, decoded.getEpoch());
+		assertEquals(uuid, decoded.getDeadPingTimeout());
+		assertPeer(suspected, decoded.getSuspectedPeer());
+	}
+
+	@Test
+	public void roundTripsStatus() {
+		Status decoded = (Status) roundTrip(
+				new NetStatus(src, dst, new Status(1, 2, 3, 4))).getContent();
+		assertEquals(1, (int) decoded.getReceivedPings());
+		assertEquals(2, (int) decoded.getDeadNodes());
+		assertEquals(3, (int) decoded.getAliveNodes());
+		assertEquals(4, (int) decoded.getSuspectedNodes());
+	}
+
+	@Test
+	public void roundTripsSourceHeader() {
+		NetMsg<?> msg = new NetPing(src, dst, piggyback, uuid, 7, EPOCH)
+				.copyMessage(new SourceHeader<NatedAddress>(basicHeader(),
+						parents.get(1)));
+		Header<NatedAddress> header = roundTrip(msg).getHeader();
+		assertTrue(header instanceof SourceHeader);
+		SourceHeader<NatedAddress> source = (SourceHeader<NatedAddress>) header;
+		assertEquals(parents.get(1).getId(), source.getDestination().getId());
+		assertEquals(src.getId(), source.getSource().getId());
+		assertAddress(dst, source.getActualDestination());
+	}
+
+	@Test
+	public void roundTripsRelayHeader() {
+		NetMsg<?> msg = new NetPing(src, dst, piggyback, uuid, 7, EPOCH)
+				.copyMessage(new RelayHeader<NatedAddress>(basicHeader(),
+						parents.get(2)));
+		Header<NatedAddress> header = roundTrip(msg).getHeader();
+		assertTrue(header instanceof RelayHeader);
+		RelayHeader<NatedAddress> relay = (RelayHeader<NatedAddress>) header;
+		assertEquals(parents.get(2).getId(), relay.getSource().getId());
+		assertBasicHeader(relay.getActualHeader());
+	}
+
+	@Test
+	public void roundTripsBatch() {
+		List<NetMsg<Object>> messages = new ArrayList<>();
+		messages.add((NetMsg) new NetPing(src, dst, piggyback, uuid, 1, EPOCH));
+		messages.add((NetMsg) new NetStatus(src, dst, new Status(1, 2, 3, 4))
+				.copyMessage(new SourceHeader<NatedAddress>(basicHeader(),
+						parents.get(0))));
+		NetBatch decoded = (NetBatch) roundTrip(new NetBatch(src,
+				parents.get(0), messages));
+		List<NetMsg<Object>> batched = decoded.getContent().getMessages();
+		assertEquals(2, batched.size());
+		assertPeers(piggyback, ((Ping) batched.get(0).getContent())
+				.getPiggyback());
+		assertTrue(batched.get(1).getHeader() instanceof SourceHeader);
+		assertEquals(4, (int) ((Status) batched.get(1).getContent())
+				.getSuspectedNodes());
+	}
+
+	@Test
+	public void payloadDecodesToTheOriginalMessage() {
+		NetPong pong = new NetPong(src, dst, piggyback, uuid, 8, EPOCH);
+		Payload payload = SwimCodec.toPayload(pong);
+		assertEquals(SwimCodec.PONG, payload.getType());
+
+		NetPong decoded = (NetPong) SwimCodec.fromPayload(basicHeader(),
+				payload, addresses);
+		assertEquals(uuid, decoded.getContent().getPingTimeoutUUID());
+		assertPeers(piggyback, decoded.getContent().getView());
+
+		// A relayed payload is encoded the same as the message it holds
+		SourceHeader<NatedAddress> header = new SourceHeader<NatedAddress>(
+				basicHeader(), parents.get(0));
+		assertArrayEquals(SwimCodec.toBytes(pong.copyMessage(header)),
+				SwimCodec.toBytes(new NetPayload(header, payload)));
+	}
+
+	@Test
+	public void readsTheProbeOfEncodedPingsAndPongs() {
+		assertEquals(uuid, SwimCodec.probeOf(SwimCodec.toPayload(new NetPong(
+				src, dst, piggyback, uuid, 8, EPOCH))));
+		assertEquals(uuid, SwimCodec.probeOf(SwimCodec.toPayload(new NetPing(
+				src, dst, piggyback, uuid, 7, EPOCH))));
+		assertNull(SwimCodec.probeOf(SwimCodec.toPayload(new NetIndirectPing(
+				src, dst, new IndirectPing(suspected, uuid, 10, EPOCH)))));
+	}
+
+	@Test
+	public void encodedSizeIsExact() {
+		NetMsg<?> msg = new NetPing(src, dst, piggyback, uuid, 7, EPOCH)
+				.copyMessage(new SourceHeader<NatedAddress>(basicHeader(),
+						parents.get(1)));
+		assertEquals(SwimCodec.encodedSize(msg), SwimCodec.toBytes(msg).length);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsTruncatedMessages() {
+		byte[] bytes = SwimCodec.toBytes(new NetPing(src, dst, piggyback, uuid,
+				7, EPOCH));
+		SwimCodec.fromBytes(Arrays.copyOf(bytes, bytes.length - 3), addresses);
+	}
+
+	private NetMsg<?> roundTrip(NetMsg<?> msg) {
+		byte[] bytes = SwimCodec.toBytes(msg);
+		NetMsg<?> decoded = SwimCodec.fromBytes(bytes, addresses);
+		assertArrayEquals(bytes, SwimCodec.toBytes(decoded));
+		return decoded;
+	}
+
+	private Header<NatedAddress> basicHeader() {
+		return new BasicHeader<NatedAddress>(src, dst, Transport.UDP);
+	}
+
+	private void assertBasicHeader(Header<NatedAddress> header) {
+		assertTrue(header instanceof BasicHeader);
+		assertEquals(Transport.UDP, header.getProtocol());
+		assertAddress(src, header.getSource());
+		assertAddress(dst, header.getDestination());
+	}
+
+	private static void assertPeers(List<Peer> expected, List<Peer> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertPeer(expected.get(i), actual.get(i));
+		}
+	}
+
+	private static void assertPeer(Peer expected, Peer actual) {
+		assertAddress(expected.getNode(), actual.getNode());
+		assertEquals(expected.getState(), actual.getState());
+		assertEquals(expected.getIncarnation(), actual.getIncarnation());
+	}
+
+	private static void assertAddress(NatedAddress expected, NatedAddress actual) {
+		assertEquals(expected.getId(), actual.getId());
+		assertEquals(expected.getBaseAdr(), actual.getBaseAdr());
+		assertEquals(expected.getNatType(), actual.getNatType());
+		assertEquals(expected.getParents(), actual.getParents());
+	}
+}
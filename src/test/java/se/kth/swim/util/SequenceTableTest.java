@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * GVoD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.swim.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SequenceTableTest {
+	private static final int EPOCH = 42;
+
+	@Test
+	public void acceptsNewSenderAndHigherCounters() {
+		SequenceTable table = new SequenceTable(4);
+		assertTrue(table.accept(7, EPOCH, 10));
+		assertTrue(table.accept(7, EPOCH, 11));
+		assertTrue(table.accept(7, EPOCH, 20));
+		assertEquals(20, table.getHighest(7));
+		assertEquals(Integer.MIN_VALUE, table.getHighest(8));
+	}
+
+	@Test
+	public void dropsDuplicates() {
+		SequenceTable table = new SequenceTable(4);
+		assertTrue(table.accept(1, EPOCH, 5));
+		assertFalse(table.accept(1, EPOCH, 5));
+		assertTrue(table.accept(1, EPOCH, 6));
+		assertFalse(table.accept(1, EPOCH, 6));
+		assertFalse(table.accept(1, EPOCH, 5));
+	}
+
+	@Test
+	public void acceptsReorderedCountersInsideTheWindowOnce() {
+		SequenceTable table = new SequenceTable(4);
+		assertTrue(table.accept(1, EPOCH, 100));
+		assertTrue(table.accept(1, EPOCH, 103));
+		assertTrue(table.accept(1, EPOCH, 101));
+		assertTrue(table.accept(1, EPOCH, 102));
+		assertFalse(table.accept(1, EPOCH, 101));
+		assertTrue(table.accept(1, EPOCH, 103 - SequenceTable.WINDOW + 1));
+		assertFalse(table.accept(1, EPOCH, 103 - SequenceTable.WINDOW));
+		assertEquals(103, table.getHighest(1));
+	}
+
+	@Test
+	public void jumpPastTheWindowForgetsOlderCounters() {
+		SequenceTable table = new SequenceTable(4);
+		assertTrue(table.accept(1, EPOCH, 0));
+		assertTrue(table.accept(1, EPOCH, 1000));
+		assertFalse(table.accept(1, EPOCH, 1));
+		assertTrue(table.accept(1, EPOCH, 999));
+	}
+
+	@Test
+	public void newEpochAcceptsARestartedSender() {
+		SequenceTable table = new SequenceTable(4);
+		assertTrue(table.accept(3, EPOCH, 500));
+		assertFalse(table.accept(3, EPOCH, 1));
+		assertTrue(table.accept(3, EPOCH + 1, 1));
+		assertEquals(1, table.getHighest(3));
+		assertTrue(table.accept(3, EPOCH + 1, 2));
+		assertFalse(table.accept(3, EPOCH + 1, 1));
+		assertEquals(1, table.size());
+	}
+
+	@Test
+	public void dropsLateMessagesOfThePreviousEpoch() {
+		SequenceTable table = new SequenceTable(4);
+		assertTrue(table.accept(3, EPOCH, 10));
+		assertTrue(table.accept(3, EPOCH + 1, 1));
+		assertFalse(table.accept(3, EPOCH, 9));
+		assertFalse(table.accept(3, EPOCH, 11));
+		assertTrue(table.accept(3, EPOCH + 1, 2));
+
+		// Restarted once more
+		assertTrue(table.accept(3, EPOCH + 2, 1));
+		assertFalse(table.accept(3, EPOCH + 1, 3));
+	}
+
+	@Test
+	public void keepsSendersApartWhenGrowing() {
+		SequenceTable table = new SequenceTable(2);
+		for (int sender = 0; sender < 1000; sender++) {
+			assertTrue(table.accept(sender, EPOCH, sender));
+		}
+		assertEquals(1000, table.size());
+		for (int sender = 0; sender < 1000; sender++) {
+			assertEquals(sender, table.getHighest(sender));
+			assertFalse(table.accept(sender, EPOCH, sender));
+		}
+	}
+}